@@ -0,0 +1,187 @@
+package viewer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the sample kernel, based on the Vector API (jdk.incubator.vector).
+ * Processes as many lanes as the preferred species of the platform (8 with AVX2, 16 with AVX-512).
+ * The remaining elements of each batch are processed by the scalar kernel.
+ * Bilinear blending uses 8-bit weights, so colors may differ by up to two levels from the scalar kernel.
+ * Requires running with: --add-modules jdk.incubator.vector
+ * @author edu
+ */
+final class VectorKernel implements SampleKernel {
+
+    private static final VectorSpecies<Float> FS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> IS = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = FS.length();
+    // Adding 1.5 * 2^23 rounds a float to an integer, which is then stored in the low bits of the mantissa
+    private static final float MAGIC = 12582912.0f;
+    private static final int MAGIC_BITS = 0x4B400000;
+
+    private final SampleKernel scalar = Cubemap.SCALAR_KERNEL;
+
+    /**
+     * Checks if the kernel can run on this platform: the float and int species must have the same lanes.
+     * @return true if the kernel is supported
+     */
+    static boolean isSupported(){
+        return IS.length() == LANES;
+    }
+
+    @Override
+    public String getName(){
+        return "Vector API (" + LANES + " lanes)";
+    }
+
+    @Override
+    public void project(float dx[], float dy[], float dz[], int face[], float u[], float v[], float axis[], int start, int end) {
+        int i = start;
+        int upper = start + FS.loopBound(end - start);
+        for (; i < upper; i += LANES) {
+            FloatVector x = FloatVector.fromArray(FS, dx, i);
+            FloatVector y = FloatVector.fromArray(FS, dy, i);
+            FloatVector z = FloatVector.fromArray(FS, dz, i);
+            FloatVector ax = x.abs(), ay = y.abs(), az = z.abs();
+            VectorMask<Float> zMajor = az.compare(VectorOperators.GT, ax).and(az.compare(VectorOperators.GT, ay));
+            VectorMask<Float> yMajor = ay.compare(VectorOperators.GT, ax).andNot(zMajor);
+            VectorMask<Float> xPos = x.compare(VectorOperators.GE, 0.0f);
+            VectorMask<Float> yPos = y.compare(VectorOperators.GE, 0.0f);
+            VectorMask<Float> zPos = z.compare(VectorOperators.GE, 0.0f);
+            // X major by default, then replace the lanes with Y or Z major
+            FloatVector negZ = z.neg(), negX = x.neg(), negY = y.neg();
+            FloatVector sc = z.blend(negZ, xPos).blend(x, yMajor).blend(x.blend(negX, zPos.not()), zMajor);
+            FloatVector tc = negY.blend(z.blend(negZ, yPos.not()), yMajor);
+            FloatVector maxAxis = ax.blend(ay, yMajor).blend(az, zMajor);
+            IntVector f = IntVector.broadcast(IS, Cubemap.NEGX).blend(Cubemap.POSX, xPos.cast(IS))
+                    .blend(IntVector.broadcast(IS, Cubemap.NEGY).blend(Cubemap.POSY, yPos.cast(IS)), yMajor.cast(IS))
+                    .blend(IntVector.broadcast(IS, Cubemap.NEGZ).blend(Cubemap.POSZ, zPos.cast(IS)), zMajor.cast(IS));
+            FloatVector scale = FloatVector.broadcast(FS, 0.5f).div(maxAxis);
+            f.intoArray(face, i);
+            sc.mul(scale).add(0.5f).intoArray(u, i);
+            tc.mul(scale).add(0.5f).intoArray(v, i);
+            maxAxis.intoArray(axis, i);
+        }
+        scalar.project(dx, dy, dz, face, u, v, axis, i, end);
+    }
+
+    @Override
+    public void sampleNearest(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+        int stride = size + 2 * Cubemap.BORDER;
+        int index[] = new int[LANES];
+        int texels[] = new int[LANES];
+        int i = start;
+        int upper = start + FS.loopBound(end - start);
+        for (; i < upper; i += LANES) {
+            IntVector ru = toInt(floor(notNaN(FloatVector.fromArray(FS, u, i).mul(size))));
+            IntVector rv = toInt(floor(notNaN(FloatVector.fromArray(FS, v, i).mul(size))));
+            rv.add(Cubemap.BORDER).mul(stride).add(ru).add(Cubemap.BORDER).intoArray(index, 0);
+            gather(faces, face, i, index, 0, texels).intoArray(out, off + i);
+        }
+        scalar.sampleNearest(faces, size, face, u, v, out, off, i, end);
+    }
+
+    @Override
+    public void sampleLinear(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+        int stride = size + 2 * Cubemap.BORDER;
+        int index[] = new int[LANES];
+        int texels[] = new int[LANES];
+        float shift = Cubemap.BORDER - 0.5f;
+        int i = start;
+        int upper = start + FS.loopBound(end - start);
+        for (; i < upper; i += LANES) {
+            FloatVector fu = notNaN(FloatVector.fromArray(FS, u, i).mul(size).add(shift));
+            FloatVector fv = notNaN(FloatVector.fromArray(FS, v, i).mul(size).add(shift));
+            FloatVector u0 = floor(fu);
+            FloatVector v0 = floor(fv);
+            // 8-bit weights
+            IntVector alpha = toInt(floor(fu.sub(u0).mul(256.0f)));
+            IntVector beta = toInt(floor(fv.sub(v0).mul(256.0f)));
+            toInt(v0).mul(stride).add(toInt(u0)).intoArray(index, 0);
+            IntVector s00 = gather(faces, face, i, index, 0, texels);
+            IntVector s01 = gather(faces, face, i, index, 1, texels);
+            IntVector s10 = gather(faces, face, i, index, stride, texels);
+            IntVector s11 = gather(faces, face, i, index, stride + 1, texels);
+            IntVector top = lerp(s00, s01, alpha);
+            IntVector bottom = lerp(s10, s11, alpha);
+            lerp(top, bottom, beta).intoArray(out, off + i);
+        }
+        scalar.sampleLinear(faces, size, face, u, v, out, off, i, end);
+    }
+
+    /**
+     * Replace NaN with zero, like the scalar kernel converts NaN to int.
+     * A zero length direction projects to NaN coordinates, which must not become texel indices.
+     * @param x Values
+     * @return Values, zero in the NaN lanes
+     */
+    private static FloatVector notNaN(FloatVector x) {
+        return x.blend(0.0f, x.test(VectorOperators.IS_NAN));
+    }
+
+    /**
+     * Round down to an integer. The Vector API has no intrinsic for float to int conversion on
+     * every platform, so the rounding is done with float arithmetic.
+     * @param x Values in range (-2^22, 2^22)
+     * @return Values rounded down
+     */
+    private static FloatVector floor(FloatVector x) {
+        FloatVector rounded = x.add(MAGIC).sub(MAGIC);
+        return rounded.sub(1.0f, rounded.compare(VectorOperators.GT, x));
+    }
+
+    /**
+     * Convert integer floats to ints.
+     * @param x Integer values in range (-2^22, 2^22)
+     * @return Converted values
+     */
+    private static IntVector toInt(FloatVector x) {
+        return x.add(MAGIC).reinterpretAsInts().sub(MAGIC_BITS);
+    }
+
+    /**
+     * Gather texels of several faces.
+     * Uses a vector gather when all the lanes sample the same face, which is the common case.
+     * Otherwise the texels are loaded one by one, masked gathers of each face are slower.
+     * @param faces Pixels of the 6 faces of a level
+     * @param face Index of face of each element
+     * @param i Index of first element
+     * @param index Index of texel of each lane
+     * @param offset Offset added to the indices
+     * @param texels Scratch array of one vector
+     * @return Texels
+     */
+    private static IntVector gather(int faces[][], int face[], int i, int index[], int offset, int texels[]) {
+        int first = face[i];
+        if (IntVector.fromArray(IS, face, i).eq(first).allTrue()) {
+            return IntVector.fromArray(IS, faces[first], offset, index, 0);
+        }
+        for (int lane = 0; lane < LANES; lane++) {
+            texels[lane] = faces[face[i + lane]][index[lane] + offset];
+        }
+        return IntVector.fromArray(IS, texels, 0);
+    }
+
+    /**
+     * Linear interpolation of packed RGB colors, processing red and blue together.
+     * @param c0 First colors
+     * @param c1 Second colors
+     * @param weight Weight of second colors in range [0, 255]
+     * @return Interpolated colors
+     */
+    private static IntVector lerp(IntVector c0, IntVector c1, IntVector weight) {
+        IntVector invWeight = IntVector.broadcast(IS, 256).sub(weight);
+        IntVector rb = c0.lanewise(VectorOperators.AND, 0x00FF00FF).mul(invWeight)
+                .add(c1.lanewise(VectorOperators.AND, 0x00FF00FF).mul(weight))
+                .lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.AND, 0x00FF00FF);
+        IntVector g = c0.lanewise(VectorOperators.AND, 0x0000FF00).mul(invWeight)
+                .add(c1.lanewise(VectorOperators.AND, 0x0000FF00).mul(weight))
+                .lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.AND, 0x0000FF00);
+        return rb.or(g);
+    }
+
+}
@@ -28,4 +28,16 @@ public class MathUtils {
         return start + alpha * (end-start);
     }
     
+    /**
+     * Fast approximation of base 2 logarithm. Max error is about 0.005.
+     * @param value Positive value
+     * @return log2 of value
+     */
+    public static final float log2(float value){
+        int bits = Float.floatToRawIntBits(value);
+        float exponent = ((bits >> 23) & 0xFF) - 128;
+        float mantissa = Float.intBitsToFloat((bits & 0x007FFFFF) | 0x3F800000);
+        return exponent + (-0.33333333f * mantissa + 2.0f) * mantissa - 0.66666667f;
+    }
+    
 }
\ No newline at end of file
@@ -0,0 +1,451 @@
+package viewer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import math.Matrix33;
+
+/**
+ * Headless batch renderer.
+ * Renders cubemaps to image files with the static renderers of {@link ImageRenderer}, on all cores,
+ * without the viewer window. The jobs go through a pipeline, see {@link ConversionPipeline}: the cubemaps are decoded,
+ * rendered and the images encoded by different threads at the same time, and the bounded queues between the stages
+ * keep a few jobs in memory whatever the number of jobs. Each image is written to disk as soon as it is rendered.
+ * Usage: BatchRender [options] cubemapDir... | BatchRender [options] -jobs file
+ * <p>
+ * Options, also accepted after the cubemap directory in each line of a job file:
+ * <ul>
+ * <li>-type perspective|equirect|unwrapped: projection. Default equirect.</li>
+ * <li>-size WIDTHxHEIGHT: size of image. Default 2048x1024.</li>
+ * <li>-fov DEGREES: field of view of perspective projection. Default 75.</li>
+ * <li>-yaw, -pitch, -roll DEGREES: orientation, yaw around Y, pitch around X and roll around Z.</li>
+ * <li>-offset OFFSET: horizontal offset of equirectangular projection, one is a full turn.</li>
+ * <li>-filter nearest|bilinear|trilinear: filter mode. Default trilinear.</li>
+ * <li>-ref, -refcolor RRGGBB: draw the reference, and its color.</li>
+ * <li>-format png|jpg|bmp: format of images. Default png.</li>
+ * <li>-out DIR: directory of images, named after the cubemap directories. Default current directory.</li>
+ * <li>-o FILE: image file of one job. A png, jpg, jpeg or bmp extension selects the format.
+ * On the command line, only with a single cubemap directory and no job file.</li>
+ * <li>-threads N: number of threads decoding the faces, building the mipmaps and rendering. Default number of processors. Command line only.</li>
+ * <li>-decoders N: number of cubemaps decoded at the same time. Default 2. Command line only.</li>
+ * <li>-encoders N: number of threads encoding images. Default 2. Command line only.</li>
+ * <li>-queue N: capacity of the queues between the stages. Default 2. Command line only.</li>
+ * </ul>
+ * A job file has one job per line: a cubemap directory and its options, separated by spaces.
+ * Empty lines and lines starting with # are ignored.
+ * @author edu
+ */
+public class BatchRender {
+
+    private static final int TYPE_PERSPECTIVE = 0;
+    private static final int TYPE_EQUIRECT = 1;
+    private static final int TYPE_UNWRAPPED = 2;
+
+    private static final String STAGE_NAMES[] = new String[]{"decode", "render", "encode"};
+
+    /**
+     * Parameters of a render job.
+     */
+    private static final class Job {
+
+        String cubemapDir;
+        String outputFile;
+        String outputDir = ".";
+        String format = "png";
+        int type = TYPE_EQUIRECT;
+        int width = 2048, height = 1024;
+        float fov = 75.0f;
+        float yaw, pitch, roll;
+        float offset;
+        int filter = Cubemap.FILTER_TRILINEAR;
+        boolean showReference;
+        int refColor = 0x000000FF;
+        // Data of the stages of the pipeline, released by the next stage
+        Cubemap cubemap;
+        BufferedImage image;
+        long startTime;
+        long faceLoadTimes[];
+
+        Job copy(){
+            Job job = new Job();
+            job.outputDir = outputDir;
+            job.format = format;
+            job.type = type;
+            job.width = width;
+            job.height = height;
+            job.fov = fov;
+            job.yaw = yaw;
+            job.pitch = pitch;
+            job.roll = roll;
+            job.offset = offset;
+            job.filter = filter;
+            job.showReference = showReference;
+            job.refColor = refColor;
+            return job;
+        }
+
+        /**
+         * Orientation of the view: yaw, then pitch, then roll, like the viewer.
+         */
+        Matrix33 orientation(){
+            Matrix33 rotY = Matrix33.rotateY((float) Math.toRadians(yaw));
+            Matrix33 rotX = Matrix33.rotateX((float) Math.toRadians(pitch));
+            Matrix33 rotZ = Matrix33.rotateZ((float) Math.toRadians(roll));
+            return rotY.mult(rotX).mult(rotZ);
+        }
+
+        File output(){
+            if(outputFile != null){
+                return new File(outputFile);
+            }
+            return new File(outputDir, new File(cubemapDir).getName() + "." + format);
+        }
+
+    }
+
+    /**
+     * Parse an option.
+     * @param job Job with the option.
+     * @param args Arguments.
+     * @param i Index of option.
+     * @return Index of next argument, or -1 if it is not an option of a job.
+     */
+    private static int parseOption(Job job, String args[], int i){
+        String option = args[i];
+        switch(option){
+            case "-ref":
+                job.showReference = true;
+                return i + 1;
+            case "-type":
+            case "-size":
+            case "-fov":
+            case "-yaw":
+            case "-pitch":
+            case "-roll":
+            case "-offset":
+            case "-filter":
+            case "-refcolor":
+            case "-format":
+            case "-out":
+            case "-o":
+                break;
+            default:
+                return -1;
+        }
+        if(i + 1 >= args.length){
+            throw new IllegalArgumentException("Missing value of " + option);
+        }
+        String value = args[i + 1];
+        switch(option){
+            case "-type":
+                job.type = parseType(value);
+                break;
+            case "-size":
+                int x = value.indexOf('x');
+                if(x < 0){
+                    throw new IllegalArgumentException("Invalid size: " + value);
+                }
+                job.width = Integer.parseInt(value.substring(0, x));
+                job.height = Integer.parseInt(value.substring(x + 1));
+                if(job.width <= 0 || job.height <= 0){
+                    throw new IllegalArgumentException("Invalid size: " + value);
+                }
+                break;
+            case "-fov":
+                job.fov = Float.parseFloat(value);
+                break;
+            case "-yaw":
+                job.yaw = Float.parseFloat(value);
+                break;
+            case "-pitch":
+                job.pitch = Float.parseFloat(value);
+                break;
+            case "-roll":
+                job.roll = Float.parseFloat(value);
+                break;
+            case "-offset":
+                job.offset = Float.parseFloat(value);
+                break;
+            case "-filter":
+                job.filter = parseFilter(value);
+                break;
+            case "-refcolor":
+                job.refColor = Integer.parseInt(value, 16) & 0x00FFFFFF;
+                break;
+            case "-format":
+                job.format = value.toLowerCase();
+                break;
+            case "-out":
+                job.outputDir = value;
+                break;
+            default:
+                job.outputFile = value;
+                // The extension of the file selects the format
+                int dot = value.lastIndexOf('.');
+                String extension = dot >= 0 ? value.substring(dot + 1).toLowerCase() : "";
+                if(extension.equals("png") || extension.equals("jpg") || extension.equals("jpeg") || extension.equals("bmp")){
+                    job.format = extension;
+                }
+                break;
+        }
+        return i + 2;
+    }
+
+    private static int parseType(String value){
+        switch(value.toLowerCase()){
+            case "perspective":
+                return TYPE_PERSPECTIVE;
+            case "equirect":
+                return TYPE_EQUIRECT;
+            case "unwrapped":
+                return TYPE_UNWRAPPED;
+            default:
+                throw new IllegalArgumentException("Invalid projection: " + value);
+        }
+    }
+
+    private static int parseFilter(String value){
+        switch(value.toLowerCase()){
+            case "nearest":
+                return Cubemap.FILTER_NEAREST;
+            case "bilinear":
+                return Cubemap.FILTER_BILINEAR;
+            case "trilinear":
+                return Cubemap.FILTER_TRILINEAR;
+            default:
+                throw new IllegalArgumentException("Invalid filter: " + value);
+        }
+    }
+
+    /**
+     * Read the jobs of a job file.
+     * @param file Job file.
+     * @param defaults Options of the command line.
+     * @param jobs Output jobs.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static void readJobs(String file, Job defaults, List<Job> jobs) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null){
+                lineNumber++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                String tokens[] = line.split("\\s+");
+                Job job = defaults.copy();
+                job.cubemapDir = tokens[0];
+                for(int i = 1; i < tokens.length;){
+                    int next = parseOption(job, tokens, i);
+                    if(next < 0){
+                        throw new IllegalArgumentException(file + ":" + lineNumber + ": invalid option " + tokens[i]);
+                    }
+                    i = next;
+                }
+                jobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Render a job.
+     * @param job Job
+     * @param cubemap Cubemap of job.
+     * @param pool Pool of render threads.
+     * @return Rendered image.
+     */
+    private static BufferedImage render(Job job, Cubemap cubemap, ForkJoinPool pool) {
+        switch(job.type){
+            case TYPE_PERSPECTIVE:
+                return ImageRenderer.render(cubemap, job.orientation(), job.fov, job.showReference, job.refColor, job.filter, job.width, job.height, pool);
+            case TYPE_UNWRAPPED:
+                return ImageRenderer.renderUnWrapped(cubemap, job.showReference, job.refColor, job.width, job.height, pool);
+            default:
+                return ImageRenderer.renderEquirect(cubemap, job.showReference, job.refColor, job.filter, job.width, job.height, job.offset, job.orientation(), pool);
+        }
+    }
+
+    /**
+     * Creates the pipeline of the jobs: decode the cubemap, render and encode the image.
+     * The render stage has one thread, each render uses all the threads of the pool.
+     * The decode stage loads the cubemaps in the pool too, so the pool bounds all the threads doing work.
+     * @param pool Pool of render and decode threads.
+     * @param decoders Number of cubemaps decoded at the same time.
+     * @param encoders Number of encode threads.
+     * @param capacity Capacity of the queues between stages.
+     * @return Pipeline
+     */
+    private static ConversionPipeline<Job> pipeline(final ForkJoinPool pool, int decoders, int encoders, int capacity){
+        ConversionPipeline.Stage<Job> decode = new ConversionPipeline.Stage<Job>() {
+            @Override
+            public void process(Job job) throws IOException {
+                job.startTime = System.nanoTime();
+                job.cubemap = Cubemap.loadCubemap(job.cubemapDir, Cubemap.LAYOUT_LINEAR, 1, pool);
+                job.faceLoadTimes = job.cubemap.getFaceLoadTimes();
+            }
+        };
+        ConversionPipeline.Stage<Job> render = new ConversionPipeline.Stage<Job>() {
+            @Override
+            public void process(Job job) {
+                Cubemap cubemap = job.cubemap;
+                job.cubemap = null;
+                job.image = render(job, cubemap, pool);
+            }
+        };
+        ConversionPipeline.Stage<Job> encode = new ConversionPipeline.Stage<Job>() {
+            @Override
+            public void process(Job job) throws IOException {
+                BufferedImage image = job.image;
+                job.image = null;
+                if(!ImageIO.write(image, job.format, job.output())){
+                    throw new IOException("Unsupported format: " + job.format);
+                }
+            }
+        };
+        List<ConversionPipeline.Stage<Job>> stages = new ArrayList<>();
+        stages.add(decode);
+        stages.add(render);
+        stages.add(encode);
+        return new ConversionPipeline<>(STAGE_NAMES, stages, new int[]{decoders, 1, encoders}, capacity);
+    }
+
+    /**
+     * Parse a positive number.
+     * @param option Name of option.
+     * @param value Value of option.
+     * @return Number
+     */
+    private static int parseCount(String option, String value){
+        int count = Integer.parseInt(value);
+        if(count <= 0){
+            throw new IllegalArgumentException("Invalid value of " + option + ": " + value);
+        }
+        return count;
+    }
+
+    private static void usage(){
+        System.err.println("Usage: BatchRender [options] cubemapDir... | BatchRender [options] -jobs file");
+        System.err.println("Options: -type perspective|equirect|unwrapped -size WIDTHxHEIGHT -fov DEGREES");
+        System.err.println("         -yaw DEGREES -pitch DEGREES -roll DEGREES -offset OFFSET");
+        System.err.println("         -filter nearest|bilinear|trilinear -ref -refcolor RRGGBB");
+        System.err.println("         -format png|jpg|bmp -out DIR -o FILE");
+        System.err.println("         -threads N -decoders N -encoders N -queue N");
+    }
+
+    public static void main(String args[]){
+        System.setProperty("java.awt.headless", "true");
+        Job defaults = new Job();
+        List<Job> jobs = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int decoders = 2, encoders = 2, capacity = 2;
+        try {
+            List<String> jobFiles = new ArrayList<>();
+            List<String> dirs = new ArrayList<>();
+            for(int i = 0; i < args.length;){
+                String option = args[i];
+                if(option.equals("-jobs") || option.equals("-threads") || option.equals("-decoders") || option.equals("-encoders") || option.equals("-queue")){
+                    if(i + 1 >= args.length){
+                        throw new IllegalArgumentException("Missing value of " + option);
+                    }
+                    String value = args[i + 1];
+                    switch(option){
+                        case "-jobs":
+                            jobFiles.add(value);
+                            break;
+                        case "-threads":
+                            threads = parseCount(option, value);
+                            break;
+                        case "-decoders":
+                            decoders = parseCount(option, value);
+                            break;
+                        case "-encoders":
+                            encoders = parseCount(option, value);
+                            break;
+                        default:
+                            capacity = parseCount(option, value);
+                            break;
+                    }
+                    i += 2;
+                    continue;
+                }
+                int next = parseOption(defaults, args, i);
+                if(next >= 0){
+                    i = next;
+                }else if(args[i].startsWith("-")){
+                    throw new IllegalArgumentException("Invalid option " + args[i]);
+                }else{
+                    dirs.add(args[i++]);
+                }
+            }
+            // An image file can't be the output of several jobs
+            if(defaults.outputFile != null && (dirs.size() != 1 || !jobFiles.isEmpty())){
+                throw new IllegalArgumentException("-o needs a single cubemap directory, use -out with several");
+            }
+            // Options apply to all the directories of the command line, wherever they are
+            for(String dir: dirs){
+                Job job = defaults.copy();
+                job.cubemapDir = dir;
+                job.outputFile = defaults.outputFile;
+                jobs.add(job);
+            }
+            for(String file: jobFiles){
+                readJobs(file, defaults, jobs);
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+            System.exit(2);
+        }
+        if(jobs.isEmpty()){
+            usage();
+            System.exit(2);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ConversionPipeline<Job> pipeline = pipeline(pool, decoders, encoders, capacity);
+        final int counts[] = new int[2];
+        final long pixels[] = new long[1];
+        long start = System.nanoTime();
+        pipeline.run(jobs, new ConversionPipeline.Listener<Job>() {
+            @Override
+            public synchronized void completed(Job job) {
+                counts[0]++;
+                pixels[0] += (long) job.width * job.height;
+                StringBuilder faces = new StringBuilder();
+                for(long time: job.faceLoadTimes){
+                    faces.append(faces.length() == 0 ? "" : "/").append(time / 1000000);
+                }
+                System.out.println(String.format("%s -> %s %.1f ms, faces loaded in %s ms", job.cubemapDir, job.output().getPath(),
+                        (System.nanoTime() - job.startTime) / 1.0e6, faces));
+            }
+
+            @Override
+            public synchronized void failed(Job job, int stage, Throwable error) {
+                job.cubemap = null;
+                job.image = null;
+                counts[1]++;
+                System.err.println(job.cubemapDir + ": " + STAGE_NAMES[stage] + " failed: " + error.getMessage());
+            }
+        });
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+        // The threads of the pipeline ended, the counts are final
+        int images = counts[0], failed = counts[1];
+        System.out.println(String.format("%d images in %.2f s, %d threads: %.2f images/s, %.2f MPix/s",
+                images, seconds, threads, images / seconds, pixels[0] / 1.0e6 / seconds));
+        System.out.println(String.format("Busy time: decode %.2f s, render %.2f s, encode %.2f s",
+                pipeline.getBusyTime(0) / 1.0e9, pipeline.getBusyTime(1) / 1.0e9, pipeline.getBusyTime(2) / 1.0e9));
+        if(failed > 0){
+            System.err.println(failed + " jobs failed");
+            System.exit(1);
+        }
+    }
+
+}
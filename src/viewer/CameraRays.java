@@ -0,0 +1,117 @@
+package viewer;
+
+/**
+ * Camera space rays of a perspective projection.
+ * The ray of pixel (x, y) is (columnX(x), rowY(y), projDistance). Both coordinates are separable,
+ * so the table stores the row and column coordinates, and the start and step of the column coordinates.
+ * Depends only on the image size and the field of view: build it when they change and
+ * reuse it for every orientation, see {@link FaceRasterizer}.
+ * @author edu
+ */
+final class CameraRays {
+
+    private final int width, height;
+    private final float projDistance;
+    private final float firstX, stepX;
+    private final float columnX[];
+    private final float rowY[];
+    private final float footprint;
+
+    /**
+     * Creates the rays for a projection window centered on the view axis.
+     * @param windowLeft Left side of the projection window.
+     * @param windowBottom Bottom side of the projection window.
+     * @param xRange Width of the projection window.
+     * @param yRange Height of the projection window.
+     * @param projDistance Distance to the projection window.
+     * @param width Width of image.
+     * @param height Height of image.
+     */
+    public CameraRays(float windowLeft, float windowBottom, float xRange, float yRange, float projDistance, int width, int height){
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.width = width;
+        this.height = height;
+        this.projDistance = projDistance;
+        stepX = xRange / width;
+        firstX = windowLeft + 0.5f * stepX;
+        columnX = new float[width];
+        for(int x = 0; x < width; x++){
+            columnX[x] = firstX + x * stepX;
+        }
+        rowY = new float[height];
+        for(int y = 0; y < height; y++){
+            rowY[y] = windowBottom + yRange * ((height - 1 - y) + 0.5f) / height;
+        }
+        // Pixel area on the projection window, scaled by the projection distance
+        footprint = stepX * yRange / height * projDistance;
+    }
+
+    /**
+     * Get width of image.
+     * @return width
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * Get height of image.
+     * @return height
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * Get distance to the projection window: the Z coordinate of every ray.
+     * @return projection distance
+     */
+    public float getProjDistance(){
+        return projDistance;
+    }
+
+    /**
+     * Get X coordinate of the rays of the first column.
+     * @return X coordinate
+     */
+    public float getFirstX(){
+        return firstX;
+    }
+
+    /**
+     * Get difference of X coordinate between two consecutive columns.
+     * @return width of a pixel on the projection window
+     */
+    public float getStepX(){
+        return stepX;
+    }
+
+    /**
+     * Get X coordinate of the rays of a column: the first X plus the column times the step.
+     * @param x Column
+     * @return X coordinate
+     */
+    public float getColumnX(int x){
+        return columnX[x];
+    }
+
+    /**
+     * Get Y coordinate of the rays of a row.
+     * @param y Row, zero at the top of the image.
+     * @return Y coordinate
+     */
+    public float getRowY(int y){
+        return rowY[y];
+    }
+
+    /**
+     * Get footprint of a pixel for the level of detail, see {@link Cubemap#lod(math.Vector3D, float)}.
+     * @return pixel width * pixel height * projection distance
+     */
+    public float getFootprint(){
+        return footprint;
+    }
+
+}
@@ -0,0 +1,259 @@
+package viewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipeline of stages with their own threads, for bulk conversions: decode, render and encode.
+ * Each item goes through the stages in order. A bounded queue is between two stages, so the stages
+ * work on different items at the same time, and a stage waits when the next one falls behind:
+ * at most (queue capacity + threads) items are in each stage, whatever the number of items.
+ * A stage should release the data the next stages don't need, like the decoded cubemap after rendering.
+ * An exception fails only its item, an error ends the run: the items left are dropped and the error is thrown.
+ * @param <T> Type of items.
+ * @author edu
+ */
+final class ConversionPipeline<T> {
+
+    /**
+     * Stage of the pipeline.
+     * @param <T> Type of items.
+     */
+    interface Stage<T> {
+
+        /**
+         * Process an item. Called by the threads of the stage, one item per call.
+         * @param item Item.
+         * @throws Exception If the item failed. It skips the next stages.
+         */
+        void process(T item) throws Exception;
+
+    }
+
+    /**
+     * Receives the items that leave the pipeline. Called by the threads of the stages.
+     * @param <T> Type of items.
+     */
+    interface Listener<T> {
+
+        /**
+         * An item went through all the stages.
+         * @param item Item.
+         */
+        void completed(T item);
+
+        /**
+         * An item failed.
+         * @param item Item.
+         * @param stage Index of stage that failed.
+         * @param error Error thrown by the stage.
+         */
+        void failed(T item, int stage, Throwable error);
+
+    }
+
+    // Marks the end of the items in a queue
+    private static final Object END = new Object();
+
+    private final String names[];
+    private final List<Stage<T>> stages;
+    private final int threads[];
+    private final int capacity;
+    private final AtomicLong busyTime[];
+
+    /**
+     * Creates a pipeline.
+     * @param names Names of the stages, for the threads.
+     * @param stages Stages in order.
+     * @param threads Number of threads of each stage.
+     * @param capacity Capacity of the queue before each stage.
+     */
+    public ConversionPipeline(String names[], List<Stage<T>> stages, int threads[], int capacity){
+        if(names == null || stages == null || threads == null){
+            throw new NullPointerException();
+        }
+        if(stages.isEmpty() || names.length != stages.size() || threads.length != stages.size()){
+            throw new IllegalArgumentException("Invalid stages");
+        }
+        for(int count: threads){
+            if(count <= 0){
+                throw new IllegalArgumentException("Invalid number of threads");
+            }
+        }
+        if(capacity <= 0){
+            throw new IllegalArgumentException("Invalid queue capacity");
+        }
+        this.names = names.clone();
+        this.stages = new ArrayList<>(stages);
+        this.threads = threads.clone();
+        this.capacity = capacity;
+        busyTime = new AtomicLong[stages.size()];
+        for(int i = 0; i < busyTime.length; i++){
+            busyTime[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Process the items. Returns when all the items left the pipeline.
+     * Waits without being interrupted, the interrupt status is kept.
+     * @param items Items.
+     * @param listener Listener of the items that leave the pipeline.
+     */
+    public void run(List<T> items, final Listener<T> listener){
+        if(items == null || listener == null){
+            throw new NullPointerException();
+        }
+        final int count = stages.size();
+        // First error thrown by a stage
+        final AtomicReference<Error> error = new AtomicReference<>();
+        final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            queues.add(new ArrayBlockingQueue<>(capacity));
+        }
+        Thread all[][] = new Thread[count][];
+        for(int s = 0; s < count; s++){
+            final int stage = s;
+            // Threads of the stage still running. The last one ends the next stage.
+            final AtomicInteger running = new AtomicInteger(threads[s]);
+            all[s] = new Thread[threads[s]];
+            for(int t = 0; t < threads[s]; t++){
+                all[s][t] = new Thread(names[s] + "-" + (t + 1)){
+                    @Override
+                    public void run() {
+                        try {
+                            work(stage, queues, listener, error);
+                        } finally {
+                            if(running.decrementAndGet() == 0 && stage + 1 < count){
+                                for(int i = 0; i < threads[stage + 1]; i++){
+                                    put(queues.get(stage + 1), END);
+                                }
+                            }
+                        }
+                    }
+                };
+                all[s][t].setDaemon(true);
+                all[s][t].start();
+            }
+        }
+        // The calling thread feeds the first stage, waiting while its queue is full
+        for(T item: items){
+            if(error.get() != null){
+                break;
+            }
+            put(queues.get(0), item);
+        }
+        for(int i = 0; i < threads[0]; i++){
+            put(queues.get(0), END);
+        }
+        boolean interrupted = false;
+        for(Thread stageThreads[]: all){
+            for(Thread thread: stageThreads){
+                while(true){
+                    try {
+                        thread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        Error t = error.get();
+        if(t != null){
+            throw t;
+        }
+    }
+
+    /**
+     * Process the items of a stage until the end of its queue.
+     * After an error the items are dropped, so the stages before don't wait for this one.
+     */
+    private void work(int stage, List<BlockingQueue<Object>> queues, Listener<T> listener, AtomicReference<Error> error){
+        BlockingQueue<Object> in = queues.get(stage);
+        while(true){
+            Object next = take(in);
+            if(next == END){
+                return;
+            }
+            if(error.get() != null){
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            T item = (T) next;
+            long start = System.nanoTime();
+            try {
+                stages.get(stage).process(item);
+            } catch (Exception e) {
+                busyTime[stage].addAndGet(System.nanoTime() - start);
+                listener.failed(item, stage, e);
+                continue;
+            } catch (Error e) {
+                busyTime[stage].addAndGet(System.nanoTime() - start);
+                error.compareAndSet(null, e);
+                continue;
+            }
+            busyTime[stage].addAndGet(System.nanoTime() - start);
+            if(stage + 1 < stages.size()){
+                put(queues.get(stage + 1), item);
+            }else{
+                listener.completed(item);
+            }
+        }
+    }
+
+    /**
+     * Get time spent by the threads of a stage processing items.
+     * @param stage Index of stage.
+     * @return Time in nanoseconds.
+     */
+    public long getBusyTime(int stage){
+        return busyTime[stage].get();
+    }
+
+    /**
+     * Put an item in a queue, waiting without being interrupted. The interrupt status is kept.
+     */
+    private static void put(BlockingQueue<Object> queue, Object item){
+        boolean interrupted = false;
+        while(true){
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take an item from a queue, waiting without being interrupted. The interrupt status is kept.
+     */
+    private static Object take(BlockingQueue<Object> queue){
+        boolean interrupted = false;
+        Object item;
+        while(true){
+            try {
+                item = queue.take();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return item;
+    }
+
+}
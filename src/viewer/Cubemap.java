@@ -1,13 +1,30 @@
 package viewer;
 
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import math.MathUtils;
 import math.Vector2D;
 import math.Vector3D;
@@ -15,6 +32,13 @@ import math.Vector3D;
 /**
  * Class for cubemap images.
  * Internal Format: BufferedImage.TYPE_INT_RGB.
+ * A mipmap chain is built for each face, down to 1x1, for trilinear filtering.
+ * Each face level is stored with a border of one texel copied from the neighbour faces,
+ * so bilinear filtering needs no clamping and is seamless across the cube edges.
+ * Optionally, the samplers read a copy of the faces stored in tiles of 8x8 texels
+ * (see {@link #LAYOUT_TILED}), which keeps neighbour texels close in memory for any camera orientation.
+ * A lazy cubemap (see {@link #loadCubemapLazy}) decodes each face in the background when it is first
+ * sampled or requested, see {@link #requestFaces(int)}. Until then the face is a placeholder color.
  * @author edu
  */
 public class Cubemap {
@@ -25,6 +49,48 @@ public class Cubemap {
     public static final int NEGY = 3;
     public static final int POSZ = 4;
     public static final int NEGZ = 5;
+    
+    public static final int FILTER_NEAREST = 0;
+    public static final int FILTER_BILINEAR = 1;
+    public static final int FILTER_TRILINEAR = 2;
+    
+    /**
+     * Faces stored row by row, like the images.
+     */
+    public static final int LAYOUT_LINEAR = 0;
+    /**
+     * Faces stored in tiles of 8x8 texels, the tiles row by row.
+     * The samplers read a tiled copy of each face level, built together with the mipmap chain.
+     * It doubles the memory used by the cubemap.
+     */
+    public static final int LAYOUT_TILED = 1;
+    
+    /**
+     * Mask of the six faces: bit (1 << face) for each face.
+     */
+    public static final int ALL_FACES = 0x3F;
+    
+    /**
+     * Receives the faces of a lazy cubemap when they are loaded. Called by the loading threads.
+     */
+    public interface FaceListener {
+        
+        /**
+         * A face was loaded. The samplers read it from now on.
+         * @param cubemap Cubemap.
+         * @param face Index of cubemap face.
+         */
+        void faceLoaded(Cubemap cubemap, int face);
+        
+        /**
+         * A face failed to load. It keeps the placeholder color.
+         * @param cubemap Cubemap.
+         * @param face Index of cubemap face.
+         * @param error Error reading the face.
+         */
+        void faceFailed(Cubemap cubemap, int face, IOException error);
+        
+    }
 
     private static final Vector2D SIGN_PLUS_POINTS[] = new Vector2D[] {new Vector2D(0.15f, 0.575f), new Vector2D(0.15f, 0.425f), new Vector2D(0.425f, 0.425f), new Vector2D(0.425f, 0.15f),
         new Vector2D(0.575f, 0.15f), new Vector2D(0.575f, 0.425f), new Vector2D(0.85f, 0.425f), new Vector2D(0.85f, 0.575f), new Vector2D(0.575f, 0.575f), new Vector2D(0.575f, 0.85f), new Vector2D(0.425f, 0.85f),
@@ -42,6 +108,15 @@ public class Cubemap {
         new Vector2D(1.0f, 0.0f), new Vector2D(1.0f, 0.2f), new Vector2D(0.3f, 0.2f), new Vector2D(1.0f, 0.8f), new Vector2D(1.0f, 1.0f)};   
     
     private static final float UMIN, UMAX, VMIN, VMAX;
+
+    /**
+     * Resolution of the reference mask: texels across a face.
+     * The mask covers only the bounding box of the glyphs, see {@link #referenceMask(int)}.
+     */
+    private static final int REFERENCE_MASK_SIZE = 2048;
+    private static final int REFERENCE_MASK_COLUMNS, REFERENCE_MASK_ROWS, REFERENCE_MASK_WORDS;
+    // One bit per texel for each face, rows of REFERENCE_MASK_WORDS words
+    private static final long REFERENCE_MASK[][];
     
     static {
         float width = 0.15f;
@@ -69,45 +144,87 @@ public class Cubemap {
             v.x = v.x*width + 0.5f - width/2 + width/2;
             v.y = v.y*width + 0.5f - width/2;
         }
+        REFERENCE_MASK_COLUMNS = (int) Math.ceil((UMAX - UMIN) * REFERENCE_MASK_SIZE);
+        REFERENCE_MASK_ROWS = (int) Math.ceil((VMAX - VMIN) * REFERENCE_MASK_SIZE);
+        REFERENCE_MASK_WORDS = (REFERENCE_MASK_COLUMNS + 63) >>> 6;
+        REFERENCE_MASK = new long[6][];
+        for(int face = 0; face < 6; face++){
+            REFERENCE_MASK[face] = referenceMask(face);
+        }
     }
 
     private String name;
+    static final int BORDER = 1;
+    static final int TILE_SHIFT = 3;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+    
+    static final SampleKernel SCALAR_KERNEL = new ScalarKernel();
+    static final SampleKernel KERNEL = createKernel();
+    private static final SampleKernel TILED_KERNEL = new TiledKernel();
+    
     private final BufferedImage images[];
-    private final int imageData[][];
     private final int size;
-    private final int size_minus_one;
+    private int levels;
+    private int levelSize[];
+    private final int layout;
+    // The levels of a lazy cubemap are replaced, not modified, when a face is loaded:
+    // a sampler reads the volatile reference once and sees every texel written before it
+    private volatile int texels[][][];
+    // Texels read by the samplers: texels with linear layout, a tiled copy with tiled layout
+    private volatile int sampled[][][];
+    // Time to load each face from its file, zero if not loaded from files
+    private final long faceLoadTime[] = new long[6];
+    // Lazy cubemaps: files of the faces, null if the cubemap is not lazy
+    private File faceFiles[];
+    // Faces not requested yet. Read without synchronization by the samplers, requestFaces checks it again.
+    private int unrequestedFaces;
+    private final AtomicInteger requestedFaces = new AtomicInteger(ALL_FACES);
+    private volatile int loadedFaces = ALL_FACES;
+    // Guarded by this
+    private int failedFaces;
+    private IOException faceError;
+    private final List<FaceListener> faceListeners = new CopyOnWriteArrayList<>();
 
     /**
      * Constructs cubemap.
+     * The images are black. After writing to the images returned by {@link #getImageArray()},
+     * call {@link #update()} to rebuild the borders and the mipmap chain.
      * @param name Name for cubemap.
      * @param size Width and height of each image.
      */
     public Cubemap(String name, int size){
+        this(name, size, LAYOUT_LINEAR);
+    }
+    
+    /**
+     * Constructs cubemap with the given texel layout.
+     * The images are black. After writing to the images returned by {@link #getImageArray()},
+     * call {@link #update()} to rebuild the borders and the mipmap chain.
+     * @param name Name for cubemap.
+     * @param size Width and height of each image.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     */
+    public Cubemap(String name, int size, int layout){
         if(name == null){
             throw new NullPointerException("Cubemap name is null");
         }
         if(size <= 0){
             throw new IllegalArgumentException("Invalid cubemap size");
         }
+        if(layout != LAYOUT_LINEAR && layout != LAYOUT_TILED){
+            throw new IllegalArgumentException("Invalid layout");
+        }
+        this.name = name;
         this.size = size;
-        size_minus_one = size-1;
-        BufferedImage posX = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        BufferedImage negX = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        BufferedImage posY = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        BufferedImage negY = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        BufferedImage posZ = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        BufferedImage negZ = new BufferedImage(BufferedImage.TYPE_INT_RGB, size, size);
-        images = new BufferedImage[]{posX, negX, posY, negY, posZ, negZ};
-        WritableRaster wr;
-        DataBuffer db;
-        DataBufferInt dbi;
-        imageData = new int[6][];
+        this.layout = layout;
+        int stride = size + 2 * BORDER;
+        int baseLevel[][] = new int[6][stride * stride];
+        images = new BufferedImage[6];
         for(int i = 0; i < 6; i++){
-            wr = images[i].getRaster();
-            db = wr.getDataBuffer();
-            dbi = (DataBufferInt)db;
-            imageData[i] = dbi.getData();
+            images[i] = createImage(baseLevel[i], size);
         }
+        update(baseLevel);
     }
     
     /**
@@ -123,6 +240,23 @@ public class Cubemap {
      * @param negZ Image for -Z direction.
      */
     public Cubemap(String name, BufferedImage posX, BufferedImage negX, BufferedImage posY, BufferedImage negY, BufferedImage posZ, BufferedImage negZ){
+        this(name, posX, negX, posY, negY, posZ, negZ, LAYOUT_LINEAR);
+    }
+    
+    /**
+     * Constructs a cubemap from 6 existing images, with the given texel layout.
+     * The 6 images needs to be square and have the same size.
+     * The internal format required is BufferedImage.TYPE_INT_RGB.
+     * @param name Name for cubemap image.
+     * @param posX Image for +X direction.
+     * @param negX Image for -X direction.
+     * @param posY Image for +Y direction.
+     * @param negY Image for -Y direction.
+     * @param posZ Image for +Z direction.
+     * @param negZ Image for -Z direction.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     */
+    public Cubemap(String name, BufferedImage posX, BufferedImage negX, BufferedImage posY, BufferedImage negY, BufferedImage posZ, BufferedImage negZ, int layout){
         if(name == null){
             throw new NullPointerException("Cubemap name is null");
         }
@@ -185,20 +319,109 @@ public class Cubemap {
             posZ.getWidth() != negZ.getWidth()){
             throw new IllegalArgumentException("The 6 images have not the same size");
         }
+        if(layout != LAYOUT_LINEAR && layout != LAYOUT_TILED){
+            throw new IllegalArgumentException("Invalid layout");
+        }
         this.name = name;
         size = posX.getWidth();
-        size_minus_one = size-1;
-        images = new BufferedImage[]{posX, negX, posY, negY, posZ, negZ};
-        WritableRaster wr;
-        DataBuffer db;
-        DataBufferInt dbi;
-        imageData = new int[6][];
+        this.layout = layout;
+        int stride = size + 2 * BORDER;
+        BufferedImage sources[] = new BufferedImage[]{posX, negX, posY, negY, posZ, negZ};
+        int baseLevel[][] = new int[6][stride * stride];
+        images = new BufferedImage[6];
+        int row[] = new int[size];
+        for(int i = 0; i < 6; i++){
+            // Copy the pixels inside the border
+            Raster raster = sources[i].getRaster();
+            for(int y = 0; y < size; y++){
+                raster.getDataElements(0, y, size, 1, row);
+                System.arraycopy(row, 0, baseLevel[i], (y + BORDER) * stride + BORDER, size);
+            }
+            images[i] = createImage(baseLevel[i], size);
+        }
+        update(baseLevel);
+    }
+    
+    /**
+     * Constructs a cubemap from the pixels of the base level.
+     * @param name Name for cubemap.
+     * @param size Width and height of each face.
+     * @param baseLevel Pixels of each face, including the border.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     */
+    private Cubemap(String name, int size, int baseLevel[][], int layout){
+        if(layout != LAYOUT_LINEAR && layout != LAYOUT_TILED){
+            throw new IllegalArgumentException("Invalid layout");
+        }
+        this.name = name;
+        this.size = size;
+        this.layout = layout;
+        images = new BufferedImage[6];
+        for(int i = 0; i < 6; i++){
+            images[i] = createImage(baseLevel[i], size);
+        }
+        update(baseLevel);
+    }
+    
+    /**
+     * Constructs a lazy cubemap. The faces are not loaded, every face reads the same placeholder levels.
+     * @param name Name for cubemap.
+     * @param size Width and height of each face.
+     * @param faceFiles Files of the faces.
+     * @param placeholder Color of the faces not loaded.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     */
+    private Cubemap(String name, int size, File faceFiles[], int placeholder, int layout){
+        if(layout != LAYOUT_LINEAR && layout != LAYOUT_TILED){
+            throw new IllegalArgumentException("Invalid layout");
+        }
+        this.name = name;
+        this.size = size;
+        this.layout = layout;
+        this.faceFiles = faceFiles;
+        int count = 1;
+        for(int s = size; s > 1; s >>= 1){
+            count++;
+        }
+        levels = count;
+        levelSize = new int[count];
+        int placeholders[][][] = new int[count][6][];
+        int tiledPlaceholders[][][] = layout == LAYOUT_TILED ? new int[count][6][] : placeholders;
+        for(int level = 0; level < count; level++){
+            levelSize[level] = level == 0 ? size : Math.max(1, levelSize[level-1] >> 1);
+            int stride = levelSize[level] + 2 * BORDER;
+            int data[] = new int[stride * stride];
+            Arrays.fill(data, placeholder & 0x00FFFFFF);
+            int tiles[] = layout == LAYOUT_TILED ? toTiled(data, levelSize[level]) : data;
+            for(int i = 0; i < 6; i++){
+                placeholders[level][i] = data;
+                tiledPlaceholders[level][i] = tiles;
+            }
+        }
+        texels = placeholders;
+        sampled = tiledPlaceholders;
+        images = new BufferedImage[6];
         for(int i = 0; i < 6; i++){
-            wr = images[i].getRaster();
-            db = wr.getDataBuffer();
-            dbi = (DataBufferInt)db;
-            imageData[i] = dbi.getData();
+            images[i] = createImage(placeholders[0][i], size);
         }
+        requestedFaces.set(0);
+        unrequestedFaces = ALL_FACES;
+        loadedFaces = 0;
+    }
+    
+    /**
+     * Creates an image of type BufferedImage.TYPE_INT_RGB that shares the pixels inside the border of a face.
+     * @param data Array of pixels, including the border.
+     * @param size Width and height of face.
+     * @return The image
+     */
+    private static BufferedImage createImage(int data[], int size){
+        int stride = size + 2 * BORDER;
+        int offset = BORDER * stride + BORDER;
+        DataBufferInt dataBuffer = new DataBufferInt(data, data.length - offset, offset);
+        SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, size, size, stride, RGB_MODEL.getMasks());
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return new BufferedImage(RGB_MODEL, raster, false, null);
     }
 
     /**
@@ -220,6 +443,7 @@ public class Cubemap {
     /**
      * Return internal array of cubemap images.
      * The order is: +X, -X, +Y, -Y, +Z, -Z.
+     * The faces of a lazy cubemap not loaded yet share the image of the placeholder.
      * @return array of images.
      */
     public BufferedImage[] getImageArray(){
@@ -227,51 +451,545 @@ public class Cubemap {
     }
     
     /**
-     * Sample an image buffer. No interpolation.
-     * @param data Array of pixels
+     * Return texel layout used by the samplers.
+     * @return LAYOUT_LINEAR or LAYOUT_TILED.
+     */
+    public int getLayout(){
+        return layout;
+    }
+    
+    /**
+     * Return time spent loading each face: decoding the file and converting the pixels.
+     * The order is: +X, -X, +Y, -Y, +Z, -Z.
+     * @return times in nanoseconds, zero if the cubemap was not loaded from files.
+     */
+    public long[] getFaceLoadTimes(){
+        synchronized(this){
+            return faceLoadTime.clone();
+        }
+    }
+    
+    /**
+     * Return the faces loaded. All the faces of a cubemap that is not lazy are loaded.
+     * @return Mask of faces, bit (1 << face) for each face.
+     */
+    public int getLoadedFaces(){
+        return loadedFaces;
+    }
+    
+    /**
+     * Load faces of a lazy cubemap in the background, on the common fork-join pool.
+     * The samplers request the faces they read, this method loads them ahead of time.
+     * Each face is requested once, a face that failed is not loaded again.
+     * Does nothing if the cubemap is not lazy.
+     * @param faces Mask of faces, bit (1 << face) for each face.
+     */
+    public void requestFaces(int faces){
+        if(faceFiles == null){
+            return;
+        }
+        faces &= ALL_FACES;
+        int previous;
+        do {
+            previous = requestedFaces.get();
+            if((previous & faces) == faces){
+                return;
+            }
+        } while(!requestedFaces.compareAndSet(previous, previous | faces));
+        unrequestedFaces = ALL_FACES & ~requestedFaces.get();
+        int added = faces & ~previous;
+        for(int face = 0; face < 6; face++){
+            if((added & (1 << face)) != 0){
+                ForkJoinPool.commonPool().execute(new LazyFaceTask(face));
+            }
+        }
+    }
+    
+    /**
+     * Load all the faces of a lazy cubemap and wait for them. Does nothing if the cubemap is not lazy.
+     * @throws IOException If a face failed to load.
+     */
+    public void loadFaces() throws IOException {
+        requestFaces(ALL_FACES);
+        boolean interrupted = false;
+        synchronized(this){
+            while((loadedFaces | failedFaces) != ALL_FACES){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this){
+            if(faceError != null){
+                throw faceError;
+            }
+        }
+    }
+    
+    /**
+     * Add a listener of the faces of a lazy cubemap.
+     * @param listener Listener.
+     */
+    public void addFaceListener(FaceListener listener){
+        if(listener == null){
+            throw new NullPointerException();
+        }
+        faceListeners.add(listener);
+    }
+    
+    /**
+     * Remove a listener of the faces of a lazy cubemap.
+     * @param listener Listener.
+     */
+    public void removeFaceListener(FaceListener listener){
+        faceListeners.remove(listener);
+    }
+    
+    /**
+     * Replace the placeholder of a face with its levels.
+     * New arrays of levels are published with the face, its borders already built, so a sampler sees
+     * either the placeholder or the whole face. The borders of the loaded faces next to it are
+     * then updated in place: a sampler reading them at the same time gets the old or the new color of a texel.
+     * @param face Index of cubemap face
+     * @param data Pixels of each level of the face, including the border.
+     * @param time Time to load the face
+     */
+    private void installFace(int face, int data[][], long time){
+        synchronized(this){
+            int newTexels[][][] = new int[levels][][];
+            int newSampled[][][] = layout == LAYOUT_TILED ? new int[levels][][] : newTexels;
+            for(int level = 0; level < levels; level++){
+                newTexels[level] = texels[level].clone();
+                newTexels[level][face] = data[level];
+                fillBorders(newTexels[level], levelSize[level], face);
+                if(layout == LAYOUT_TILED){
+                    newSampled[level] = sampled[level].clone();
+                    newSampled[level][face] = toTiled(data[level], levelSize[level]);
+                }
+            }
+            texels = newTexels;
+            sampled = newSampled;
+            for(int level = 0; level < levels; level++){
+                for(int i = 0; i < 6; i++){
+                    if(i != face && (loadedFaces & (1 << i)) != 0){
+                        fillBorders(newTexels[level], levelSize[level], i);
+                        if(layout == LAYOUT_TILED){
+                            copyBordersToTiled(newTexels[level][i], newSampled[level][i], levelSize[level]);
+                        }
+                    }
+                }
+            }
+            images[face] = createImage(data[0], size);
+            faceLoadTime[face] = time;
+            loadedFaces |= 1 << face;
+            notifyAll();
+        }
+        for(FaceListener listener: faceListeners){
+            listener.faceLoaded(this, face);
+        }
+    }
+    
+    /**
+     * Record a face that failed to load.
+     * @param face Index of cubemap face
+     * @param error Error reading the face.
+     */
+    private void faceFailed(int face, IOException error){
+        synchronized(this){
+            failedFaces |= 1 << face;
+            if(faceError == null){
+                faceError = error;
+            }
+            notifyAll();
+        }
+        for(FaceListener listener: faceListeners){
+            listener.faceFailed(this, face, error);
+        }
+    }
+    
+    /**
+     * Return number of mipmap levels, including the base level.
+     * @return number of levels.
+     */
+    public int getLevels(){
+        return levels;
+    }
+    
+    /**
+     * Return size of the given mipmap level.
+     * @param level Mipmap level. Level 0 is the base level.
+     * @return width and height of the level.
+     */
+    public int getLevelSize(int level){
+        return levelSize[level];
+    }
+    
+    /**
+     * Rebuild the borders and the mipmap chain from the base images.
+     * Call it after writing to the images returned by {@link #getImageArray()}.
+     * The faces of a lazy cubemap must be loaded, see {@link #loadFaces()}.
+     */
+    public void update(){
+        if(loadedFaces != ALL_FACES){
+            throw new IllegalStateException("Faces not loaded");
+        }
+        update(texels[0]);
+    }
+    
+    /**
+     * Build the borders and the mipmap chain from the given base level.
+     * The levels are downsampled with a box filter, in parallel over the fork-join pool of the calling thread,
+     * or the common pool outside of a pool.
+     * With tiled layout, the tiled copies of the levels are rebuilt too.
+     * @param baseLevel Pixels of the base level, including the border.
+     */
+    private void update(int baseLevel[][]){
+        int count = 1;
+        for(int s = size; s > 1; s >>= 1){
+            count++;
+        }
+        int sizes[] = new int[count];
+        int data[][][] = new int[count][][];
+        sizes[0] = size;
+        data[0] = baseLevel;
+        fillBorders(data[0], sizes[0]);
+        List<DownsampleTask> tasks = new ArrayList<>();
+        for(int level = 1; level < count; level++){
+            sizes[level] = Math.max(1, sizes[level-1] >> 1);
+            int stride = sizes[level] + 2 * BORDER;
+            data[level] = new int[6][stride * stride];
+            tasks.clear();
+            for(int i = 0; i < 6; i++){
+                tasks.add(new DownsampleTask(data[level-1][i], sizes[level-1], data[level][i], sizes[level], 0, sizes[level]));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            fillBorders(data[level], sizes[level]);
+        }
+        int tiles[][][] = data;
+        if(layout == LAYOUT_TILED){
+            tiles = new int[count][6][];
+            for(int level = 0; level < count; level++){
+                for(int i = 0; i < 6; i++){
+                    tiles[level][i] = toTiled(data[level][i], sizes[level]);
+                }
+            }
+        }
+        levelSize = sizes;
+        texels = data;
+        sampled = tiles;
+        levels = count;
+    }
+    
+    /**
+     * Get the number of tiles in each row of a tiled face level, including the border.
+     * @param size Size of the level
+     * @return Number of tiles
+     */
+    static int tilesPerRow(int size){
+        return (size + 2 * BORDER + TILE_SIZE - 1) >> TILE_SHIFT;
+    }
+    
+    /**
+     * Get the index of a texel in a tiled face level.
+     * @param x Column, including the border
+     * @param y Row, including the border
+     * @param tilesPerRow Number of tiles in each row, see {@link #tilesPerRow(int)}
+     * @return Index in the array of texels
+     */
+    static int tiledIndex(int x, int y, int tilesPerRow){
+        return (((y >> TILE_SHIFT) * tilesPerRow + (x >> TILE_SHIFT)) << (2 * TILE_SHIFT))
+                | ((y & (TILE_SIZE - 1)) << TILE_SHIFT) | (x & (TILE_SIZE - 1));
+    }
+    
+    /**
+     * Copy a face level to tiled layout. The last row and column of tiles are padded.
+     * @param data Pixels of the level with linear layout, including the border
+     * @param size Size of the level
+     * @return Pixels of the level with tiled layout
+     */
+    private static int[] toTiled(int data[], int size){
+        int stride = size + 2 * BORDER;
+        int tilesPerRow = tilesPerRow(size);
+        int tiled[] = new int[tilesPerRow * tilesPerRow << (2 * TILE_SHIFT)];
+        for(int y = 0; y < stride; y++){
+            for(int x = 0; x < stride; x++){
+                tiled[tiledIndex(x, y, tilesPerRow)] = data[y * stride + x];
+            }
+        }
+        return tiled;
+    }
+    
+    /**
+     * Copy the border texels of each face from the neighbour faces.
+     * Each border texel takes the nearest texel in the direction of its center.
+     * @param level Pixels of the 6 faces of a level
+     * @param levelSize Size of the level
+     */
+    private static void fillBorders(int level[][], int levelSize){
+        for(int face = 0; face < 6; face++){
+            fillBorders(level, levelSize, face);
+        }
+    }
+    
+    /**
+     * Copy the border texels of a face from the neighbour faces.
+     * @param level Pixels of the 6 faces of a level
+     * @param levelSize Size of the level
+     * @param face Index of cubemap face
+     */
+    private static void fillBorders(int level[][], int levelSize, int face){
+        int stride = levelSize + 2 * BORDER;
+        float oneOverSize = 1.0f / levelSize;
+        Vector3D dir = new Vector3D();
+        int data[] = level[face];
+        for(int y = 0; y < stride; y++){
+            boolean borderRow = y < BORDER || y >= levelSize + BORDER;
+            for(int x = 0; x < stride; x++){
+                if(!borderRow && x == BORDER){
+                    // Skip the inner pixels
+                    x = levelSize + BORDER - 1;
+                    continue;
+                }
+                float u = (x - BORDER + 0.5f) * oneOverSize;
+                float v = 1.0f - (y - BORDER + 0.5f) * oneOverSize;
+                faceDirection(face, u, v, dir);
+                data[y * stride + x] = nearestTexel(level, levelSize, dir);
+            }
+        }
+    }
+    
+    /**
+     * Copy the border texels of a face level to its tiled copy.
+     * @param data Pixels of the level with linear layout, including the border
+     * @param tiled Pixels of the level with tiled layout
+     * @param size Size of the level
+     */
+    private static void copyBordersToTiled(int data[], int tiled[], int size){
+        int stride = size + 2 * BORDER;
+        int tilesPerRow = tilesPerRow(size);
+        for(int y = 0; y < stride; y++){
+            boolean borderRow = y < BORDER || y >= size + BORDER;
+            for(int x = 0; x < stride; x++){
+                if(!borderRow && x == BORDER){
+                    x = size + BORDER - 1;
+                    continue;
+                }
+                tiled[tiledIndex(x, y, tilesPerRow)] = data[y * stride + x];
+            }
+        }
+    }
+    
+    /**
+     * Compute the direction to a point on a cubemap face. Inverse of the projection used by the samplers.
+     * @param face Index of cubemap face
      * @param u Coordinate U
-     * @param v Coordinate V
+     * @param v Coordinate V. Zero at the bottom of the face.
+     * @param out Direction, not normalized. Its major axis has length 1.
+     * @return out
+     */
+    static Vector3D faceDirection(int face, float u, float v, Vector3D out){
+        float s = 2.0f * u - 1.0f;
+        float t = 2.0f * v - 1.0f;
+        switch(face){
+            case POSX:
+                out.x = 1.0f; out.y = t; out.z = -s;
+                break;
+            case NEGX:
+                out.x = -1.0f; out.y = t; out.z = s;
+                break;
+            case POSY:
+                out.x = s; out.y = 1.0f; out.z = -t;
+                break;
+            case NEGY:
+                out.x = s; out.y = -1.0f; out.z = t;
+                break;
+            case POSZ:
+                out.x = s; out.y = t; out.z = 1.0f;
+                break;
+            case NEGZ:
+                out.x = -s; out.y = t; out.z = -1.0f;
+                break;
+        }
+        return out;
+    }
+    
+    /**
+     * Find the texel inside the borders nearest to a direction. Only used to build the borders.
+     * @param level Pixels of the 6 faces of a level
+     * @param levelSize Size of the level
+     * @param dir 3D vector
+     * @return Color as 32 bits integer
+     */
+    private static int nearestTexel(int level[][], int levelSize, Vector3D dir){
+        float ax = Math.abs(dir.x), ay = Math.abs(dir.y), az = Math.abs(dir.z);
+        int face;
+        float u, v;
+        if(ax >= ay && ax >= az){
+            face = dir.x >= 0.0f ? POSX : NEGX;
+            u = (dir.x >= 0.0f ? -dir.z : dir.z) / ax;
+            v = dir.y / ax;
+        }else if(ay >= az){
+            face = dir.y >= 0.0f ? POSY : NEGY;
+            u = dir.x / ay;
+            v = (dir.y >= 0.0f ? -dir.z : dir.z) / ay;
+        }else{
+            face = dir.z >= 0.0f ? POSZ : NEGZ;
+            u = (dir.z >= 0.0f ? dir.x : -dir.x) / az;
+            v = dir.y / az;
+        }
+        int size_minus_one = levelSize - 1;
+        int ru = MathUtils.clamp((int) ((0.5f * u + 0.5f) * levelSize), 0, size_minus_one);
+        int rv = MathUtils.clamp((int) ((0.5f - 0.5f * v) * levelSize), 0, size_minus_one);
+        return level[face][(rv + BORDER) * (levelSize + 2 * BORDER) + ru + BORDER];
+    }
+    
+    /**
+     * Task for downsampling a range of rows of one face to the next mipmap level.
+     * The borders of the destination are not written.
+     */
+    private static class DownsampleTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private static final int ROW_THRESHOLD = 32;
+        private final int src[], dst[];
+        private final int srcSize, dstSize;
+        private final int startRow, endRow;
+        
+        /**
+         * Creates a new downsample task.
+         * @param src Pixels of source level.
+         * @param srcSize Size of source level.
+         * @param dst Pixels of destination level.
+         * @param dstSize Size of destination level.
+         * @param startRow Start row of destination level.
+         * @param endRow End row of destination level. Not inclusive.
+         */
+        public DownsampleTask(int src[], int srcSize, int dst[], int dstSize, int startRow, int endRow){
+            this.src = src;
+            this.srcSize = srcSize;
+            this.dst = dst;
+            this.dstSize = dstSize;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+        
+        @Override
+        protected void compute(){
+            if(endRow - startRow > ROW_THRESHOLD){
+                int mid = (startRow + endRow) >>> 1;
+                invokeAll(new DownsampleTask(src, srcSize, dst, dstSize, startRow, mid),
+                        new DownsampleTask(src, srcSize, dst, dstSize, mid, endRow));
+                return;
+            }
+            int srcMax = srcSize - 1;
+            int srcStride = srcSize + 2 * BORDER;
+            int dstStride = dstSize + 2 * BORDER;
+            for(int y = startRow; y < endRow; y++){
+                int row0 = (Math.min(2 * y, srcMax) + BORDER) * srcStride + BORDER;
+                int row1 = (Math.min(2 * y + 1, srcMax) + BORDER) * srcStride + BORDER;
+                int dstRow = (y + BORDER) * dstStride + BORDER;
+                for(int x = 0; x < dstSize; x++){
+                    int x0 = Math.min(2 * x, srcMax);
+                    int x1 = Math.min(2 * x + 1, srcMax);
+                    int s00 = src[row0 + x0], s01 = src[row0 + x1], s10 = src[row1 + x0], s11 = src[row1 + x1];
+                    int r = ((s00 >> 16 & 0xFF) + (s01 >> 16 & 0xFF) + (s10 >> 16 & 0xFF) + (s11 >> 16 & 0xFF) + 2) >> 2;
+                    int g = ((s00 >> 8 & 0xFF) + (s01 >> 8 & 0xFF) + (s10 >> 8 & 0xFF) + (s11 >> 8 & 0xFF) + 2) >> 2;
+                    int b = ((s00 & 0xFF) + (s01 & 0xFF) + (s10 & 0xFF) + (s11 & 0xFF) + 2) >> 2;
+                    dst[dstRow + x] = (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sample a face level. No interpolation.
+     * @param data Array of pixels, including the border
+     * @param size Width and height of face level
+     * @param u Coordinate U in range [0,1]
+     * @param v Coordinate V in range [0,1]. Zero at the top of the face.
      * @return Color as 32 bit integer
      */
-    private int sample2DNearest(int data[], float u, float v) {
-        int ru = (int) (u * size);
-        int rv = (int) (v * size);
-        ru = MathUtils.clamp(ru, 0, size_minus_one);
-        rv = MathUtils.clamp(rv, 0, size_minus_one);
-        rv = size_minus_one - rv;
-        return data[rv * size + ru];
+    private static int sample2DNearest(int data[], int size, float u, float v) {
+        int ru = (int) (u * size) + BORDER;
+        int rv = (int) (v * size) + BORDER;
+        return data[rv * (size + 2 * BORDER) + ru];
     }
 
     /**
-     * Sample an image buffer. Linear interpolation using fixed point arithmetic.
-     * @param data Array of pixels
-     * @param u Coordinate U
-     * @param v Coordinate V
+     * Sample a face level. Linear interpolation using fixed point arithmetic.
+     * The border makes clamping unnecessary for coordinates in range [0,1].
+     * @param data Array of pixels, including the border
+     * @param size Width and height of face level
+     * @param u Coordinate U in range [0,1]
+     * @param v Coordinate V in range [0,1]. Zero at the top of the face.
      * @return Color as 32 bit integer
      */
-    private int sample2DLinear(int data[], float u, float v) {
-        int mu = (int) ((-0.5f + u * size) * 65536.0f);
-        int mv = (int) ((-0.5f + v * size) * 65536.0f);
-
-        int u0 = MathUtils.clamp(mu >> 16, 0, size_minus_one);
-        int u1 = MathUtils.clamp(u0 + 1, 0, size_minus_one);
+    private static int sample2DLinear(int data[], int size, float u, float v) {
+        int stride = size + 2 * BORDER;
+        // Texel centers are at half coordinates, shifted by the border
+        int mu = (int) ((u * size + (BORDER - 0.5f)) * 65536.0f);
+        int mv = (int) ((v * size + (BORDER - 0.5f)) * 65536.0f);
         int alpha = mu & 0xFFFF;
-
-        int v0 = MathUtils.clamp(mv >> 16, 0, size_minus_one);
-        int v1 = MathUtils.clamp(v0 + 1, 0, size_minus_one);
         int beta = mv & 0xFFFF;
 
-        // Flip vertical axis
-        v0 = size_minus_one - v0;
-        v1 = size_minus_one - v1;
-
-        int idx00 = v0 * size + u0;
-        int idx01 = v0 * size + u1;
-        int idx10 = v1 * size + u0;
-        int idx11 = v1 * size + u1;
-
-        int s00 = data[idx00], s01 = data[idx01], s10 = data[idx10], s11 = data[idx11];
+        int idx00 = (mv >> 16) * stride + (mu >> 16);
+        int idx10 = idx00 + stride;
 
+        return blend(data[idx00], data[idx00 + 1], data[idx10], data[idx10 + 1], alpha, beta);
+    }
+    
+    /**
+     * Sample a face level with tiled layout. No interpolation.
+     * @param data Array of pixels in tiles, including the border
+     * @param size Width and height of face level
+     * @param u Coordinate U in range [0,1]
+     * @param v Coordinate V in range [0,1]. Zero at the top of the face.
+     * @return Color as 32 bit integer
+     */
+    private static int sample2DNearestTiled(int data[], int size, float u, float v) {
+        int ru = (int) (u * size) + BORDER;
+        int rv = (int) (v * size) + BORDER;
+        return data[tiledIndex(ru, rv, tilesPerRow(size))];
+    }
+    
+    /**
+     * Sample a face level with tiled layout. Linear interpolation using fixed point arithmetic.
+     * @param data Array of pixels in tiles, including the border
+     * @param size Width and height of face level
+     * @param u Coordinate U in range [0,1]
+     * @param v Coordinate V in range [0,1]. Zero at the top of the face.
+     * @return Color as 32 bit integer
+     */
+    private static int sample2DLinearTiled(int data[], int size, float u, float v) {
+        int tilesPerRow = tilesPerRow(size);
+        int mu = (int) ((u * size + (BORDER - 0.5f)) * 65536.0f);
+        int mv = (int) ((v * size + (BORDER - 0.5f)) * 65536.0f);
+        int x0 = mu >> 16;
+        int y0 = mv >> 16;
+        int idx00 = tiledIndex(x0, y0, tilesPerRow);
+        // Steps to the next column and row, jumping to the next tile at the last column or row of a tile
+        int stepX = (x0 & (TILE_SIZE - 1)) == TILE_SIZE - 1 ? (1 << (2 * TILE_SHIFT)) - (TILE_SIZE - 1) : 1;
+        int stepY = (y0 & (TILE_SIZE - 1)) == TILE_SIZE - 1 ? (tilesPerRow << (2 * TILE_SHIFT)) - ((TILE_SIZE - 1) << TILE_SHIFT) : TILE_SIZE;
+        int idx10 = idx00 + stepY;
+        return blend(data[idx00], data[idx00 + stepX], data[idx10], data[idx10 + stepX], mu & 0xFFFF, mv & 0xFFFF);
+    }
+    
+    /**
+     * Blend four texels with bilinear weights.
+     * @param s00 Top left texel
+     * @param s01 Top right texel
+     * @param s10 Bottom left texel
+     * @param s11 Bottom right texel
+     * @param alpha Horizontal weight in 16 bit fixed point
+     * @param beta Vertical weight in 16 bit fixed point
+     * @return Color as 32 bit integer
+     */
+    private static int blend(int s00, int s01, int s10, int s11, int alpha, int beta) {
         // Compute 16-bit weights
         long w00 = (long) (65536 - alpha) * (65536 - beta);
         long w01 = (long) alpha * (65536 - beta);
@@ -290,50 +1008,205 @@ public class Cubemap {
 
         return (r << 16) | (g << 8) | b;
     }
-
+    
     /**
-     * Sample cubemap with vector.
-     * @param dir 3D vector.
-     * @param linear true to use bilinear interpolation, false otherwise.
-     * @return Color as 32 bits integer. 
+     * Sample a face level with the layout of the cubemap. No interpolation.
+     * @param data Levels read by the samplers
+     * @param level Mipmap level
+     * @param face Index of cubemap face
+     * @param u Coordinate U
+     * @param v Coordinate V. Zero at the top of the face.
+     * @return Color as 32 bit integer
      */
-    public int sampleCubemap(Vector3D dir, boolean linear) {
-        float xuSign, xvSign, xAbs;
-        float yuSign, yvSign, yAbs;
-        float zuSign, zvSign, zAbs;
-        int xIndex, yIndex, zIndex;
-        if (dir.x >= 0.0f) {
-            xAbs = dir.x;
-            xIndex = POSX;
-            xuSign = -1.0f;
-            xvSign = 1.0f;
-        } else {
-            xAbs = -dir.x;
+    private int sampleLevelNearest(int data[][][], int level, int face, float u, float v) {
+        if(layout == LAYOUT_TILED){
+            return sample2DNearestTiled(data[level][face], levelSize[level], u, v);
+        }
+        return sample2DNearest(data[level][face], levelSize[level], u, v);
+    }
+    
+    /**
+     * Sample a face level with the layout of the cubemap. Linear interpolation.
+     * @param data Levels read by the samplers
+     * @param level Mipmap level
+     * @param face Index of cubemap face
+     * @param u Coordinate U
+     * @param v Coordinate V. Zero at the top of the face.
+     * @return Color as 32 bit integer
+     */
+    private int sampleLevelLinear(int data[][][], int level, int face, float u, float v) {
+        if(layout == LAYOUT_TILED){
+            return sample2DLinearTiled(data[level][face], levelSize[level], u, v);
+        }
+        return sample2DLinear(data[level][face], levelSize[level], u, v);
+    }
+    
+    /**
+     * Sample a face of the mipmap chain. Trilinear interpolation between the two nearest levels.
+     * @param data Levels read by the samplers
+     * @param face Index of cubemap face
+     * @param u Coordinate U
+     * @param v Coordinate V. Zero at the top of the face.
+     * @param lod Level of detail. Values less or equal than zero sample the base level.
+     * @return Color as 32 bit integer
+     */
+    private int sample2DTrilinear(int data[][][], int face, float u, float v, float lod) {
+        if(lod <= 0.0f){
+            return sampleLevelLinear(data, 0, face, u, v);
+        }
+        int maxLevel = levels - 1;
+        if(lod >= maxLevel){
+            return sampleLevelLinear(data, maxLevel, face, u, v);
+        }
+        int level0 = (int) lod;
+        int level1 = level0 + 1;
+        int s0 = sampleLevelLinear(data, level0, face, u, v);
+        int s1 = sampleLevelLinear(data, level1, face, u, v);
+        int gamma = (int) ((lod - level0) * 256.0f);
+        int invGamma = 256 - gamma;
+        int r = ((s0 >> 16 & 0xFF) * invGamma + (s1 >> 16 & 0xFF) * gamma) >> 8;
+        int g = ((s0 >> 8 & 0xFF) * invGamma + (s1 >> 8 & 0xFF) * gamma) >> 8;
+        int b = ((s0 & 0xFF) * invGamma + (s1 & 0xFF) * gamma) >> 8;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Taps of a face scaled to a size, for {@link #scaleFace}. The same for every face and for rows and columns.
+     */
+    static final class FaceScale {
+        
+        private final int outSize;
+        private final int level;
+        // Left and right texel, and 16 bit weight of the right texel, of each output column or row
+        private final int first[], second[], weight[];
+        
+        private FaceScale(int outSize, int level, int first[], int second[], int weight[]){
+            this.outSize = outSize;
+            this.level = level;
+            this.first = first;
+            this.second = second;
+            this.weight = weight;
+        }
+        
+        /**
+         * Get width and height of the scaled face.
+         * @return size
+         */
+        public int getOutSize(){
+            return outSize;
+        }
+    }
+    
+    /**
+     * Compute the taps of a face scaled to the given size.
+     * Reads the smallest mipmap level not smaller than the output with linear interpolation,
+     * so a downscale never skips texels of the level read.
+     * The taps are clamped to the inside of the face: the scaled face doesn't show the neighbour faces at its edges.
+     * @param outSize Width and height of the scaled face.
+     * @return Taps
+     */
+    FaceScale faceScale(int outSize){
+        if(outSize <= 0){
+            throw new IllegalArgumentException("Invalid size");
+        }
+        int level = 0;
+        while(level + 1 < levels && levelSize[level + 1] >= outSize){
+            level++;
+        }
+        int dataSize = levelSize[level];
+        float ratio = (float) dataSize / outSize;
+        int first[] = new int[outSize];
+        int second[] = new int[outSize];
+        int weight[] = new int[outSize];
+        int last = BORDER + dataSize - 1;
+        for(int x = 0; x < outSize; x++){
+            // Like sample2DLinear: texel centers are at half coordinates, shifted by the border
+            int mu = (int) (((x + 0.5f) * ratio + (BORDER - 0.5f)) * 65536.0f);
+            int column = mu >> 16;
+            first[x] = Math.min(Math.max(column, BORDER), last);
+            second[x] = Math.min(Math.max(column + 1, BORDER), last);
+            weight[x] = mu & 0xFFFF;
+        }
+        return new FaceScale(outSize, level, first, second, weight);
+    }
+
+    /**
+     * Scale a range of rows of a face.
+     * @param face Index of cubemap face
+     * @param scale Taps of the scaled face, see {@link #faceScale(int)}.
+     * @param startRow Start row of the scaled face.
+     * @param endRow End row of the scaled face. Not inclusive.
+     * @param out Output pixels.
+     * @param offset Index of the first pixel of the scaled face in the output.
+     * @param stride Pixels between two rows of the output.
+     */
+    void scaleFace(int face, FaceScale scale, int startRow, int endRow, int out[], int offset, int stride){
+        if((unrequestedFaces & (1 << face)) != 0){
+            requestFaces(1 << face);
+        }
+        int data[] = texels[scale.level][face];
+        int dataStride = levelSize[scale.level] + 2 * BORDER;
+        int first[] = scale.first, second[] = scale.second, weight[] = scale.weight;
+        int outSize = scale.outSize;
+        for(int y = startRow; y < endRow; y++){
+            int top = first[y] * dataStride;
+            int bottom = second[y] * dataStride;
+            int beta = weight[y];
+            int index = offset + y * stride;
+            for(int x = 0; x < outSize; x++){
+                int x0 = first[x], x1 = second[x];
+                out[index + x] = blend(data[top + x0], data[top + x1], data[bottom + x0], data[bottom + x1], weight[x], beta);
+            }
+        }
+    }
+
+    /**
+     * Sample cubemap with vector.
+     * @param dir 3D vector.
+     * @param filter Filter mode: FILTER_NEAREST, FILTER_BILINEAR or FILTER_TRILINEAR.
+     * @param lod Level of detail. Only used by trilinear filter.
+     * @param showRef true to draw the reference, false otherwise.
+     * @param ref Color for reference as 32 bits integer
+     * @return Color as 32 bits integer. 
+     */
+    private int sample(Vector3D dir, int filter, float lod, boolean showRef, int ref) {
+        // The signs of V are inverted, so V grows downwards like the rows of the images
+        float xuSign, xvSign, xAbs;
+        float yuSign, yvSign, yAbs;
+        float zuSign, zvSign, zAbs;
+        int xIndex, yIndex, zIndex;
+        if (dir.x >= 0.0f) {
+            xAbs = dir.x;
+            xIndex = POSX;
+            xuSign = -1.0f;
+            xvSign = -1.0f;
+        } else {
+            xAbs = -dir.x;
             xIndex = NEGX;
             xuSign = 1.0f;
-            xvSign = 1.0f;
+            xvSign = -1.0f;
         }
         if (dir.y >= 0.0f) {
             yAbs = dir.y;
             yIndex = POSY;
             yuSign = 1.0f;
-            yvSign = -1.0f;
+            yvSign = 1.0f;
         } else {
             yAbs = -dir.y;
             yIndex = NEGY;
             yuSign = 1.0f;
-            yvSign = 1.0f;
+            yvSign = -1.0f;
         }
         if (dir.z >= 0.0f) {
             zAbs = dir.z;
             zIndex = POSZ;
             zuSign = 1.0f;
-            zvSign = 1.0f;
+            zvSign = -1.0f;
         } else {
             zAbs = -dir.z;
             zIndex = NEGZ;
             zuSign = -1.0f;
-            zvSign = 1.0f;
+            zvSign = -1.0f;
         }
         int maxIndex = xIndex;
         float u = dir.z, v = dir.y;
@@ -354,41 +1227,363 @@ public class Cubemap {
             uSign = zuSign;
             vSign = zvSign;
         }
-        int data[] = imageData[maxIndex];
-        float nu = 0.5f * uSign * u / maxAxis + 0.5f;
-        float nv = 0.5f * vSign * v / maxAxis + 0.5f;
-        if(linear){
-            return sample2DLinear(data, nu, nv);
-        }else{
-            return sample2DNearest(data, nu, nv);
+        if((unrequestedFaces & (1 << maxIndex)) != 0){
+            requestFaces(1 << maxIndex);
+        }
+        float scale = 0.5f / maxAxis;
+        float nu = uSign * u * scale + 0.5f;
+        float nv = vSign * v * scale + 0.5f;
+        if(showRef && reference(nu, 1.0f - nv, maxIndex)){
+            return ref;
+        }
+        int data[][][] = sampled;
+        switch(filter){
+            case FILTER_TRILINEAR:
+                return sample2DTrilinear(data, maxIndex, nu, nv, lod);
+            case FILTER_BILINEAR:
+                return sampleLevelLinear(data, 0, maxIndex, nu, nv);
+            default:
+                return sampleLevelNearest(data, 0, maxIndex, nu, nv);
         }
     }
 
     /**
-     * Test if a point is inside the given polygon.
-     * @param x Coordinate X
-     * @param y Coordinate Y
-     * @param poly Array of points
-     * @return true if inside the polygon, false otherwise.
+     * Sample cubemap with vector.
+     * @param dir 3D vector.
+     * @param linear true to use bilinear interpolation, false otherwise.
+     * @return Color as 32 bits integer. 
+     */
+    public int sampleCubemap(Vector3D dir, boolean linear) {
+        return sample(dir, linear ? FILTER_BILINEAR : FILTER_NEAREST, 0.0f, false, 0);
+    }
+    
+    /**
+     * Sample cubemap with vector. Trilinear interpolation between mipmap levels.
+     * @param dir 3D vector.
+     * @param lod Level of detail. See {@link #lod(Vector3D, float)}.
+     * @return Color as 32 bits integer. 
+     */
+    public int sampleCubemapLod(Vector3D dir, float lod) {
+        return sample(dir, FILTER_TRILINEAR, lod, false, 0);
+    }
+    
+    /**
+     * Compute the level of detail for a sample, from the solid angle covered by the pixel.
+     * The footprint is the solid angle of the pixel multiplied by the cube of the length of dir.
+     * For a pinhole camera it is constant: pixel width * pixel height * projection distance.
+     * For a normalized direction it is the solid angle itself.
+     * @param dir 3D vector.
+     * @param footprint Solid angle of the pixel, scaled by |dir|^3.
+     * @return Level of detail. Negative values mean magnification.
+     */
+    public float lod(Vector3D dir, float footprint) {
+        float maxAxis = Math.max(Math.abs(dir.x), Math.max(Math.abs(dir.y), Math.abs(dir.z)));
+        // Ratio between pixel and texel solid angles. A texel of the base level spans 2/size on the unit cube.
+        float ratio = footprint * size * size * 0.25f / (maxAxis * maxAxis * maxAxis);
+        return 0.5f * MathUtils.log2(ratio);
+    }
+    
+    /**
+     * Scratch arrays for batch sampling. One instance per thread.
+     */
+    private static class BatchScratch {
+        
+        private int face[] = new int[0];
+        private float u[] = new float[0];
+        private float v[] = new float[0];
+        private float axis[] = new float[0];
+        
+        /**
+         * Grow the arrays if necessary.
+         * @param length Minimum length of the arrays
+         */
+        public void ensureCapacity(int length){
+            if(face.length < length){
+                face = new int[length];
+                u = new float[length];
+                v = new float[length];
+                axis = new float[length];
+            }
+        }
+    }
+    
+    private static final ThreadLocal<BatchScratch> BATCH_SCRATCH = new ThreadLocal<BatchScratch>(){
+        @Override
+        protected BatchScratch initialValue(){
+            return new BatchScratch();
+        }
+    };
+    
+    /**
+     * Sample cubemap with a batch of vectors given as separate arrays of components.
+     * Reads the vectors at indices [0, len) and writes the colors at indices [off, off + len) of out.
+     * @param dx X components of vectors.
+     * @param dy Y components of vectors.
+     * @param dz Z components of vectors.
+     * @param out Colors as 32 bits integers.
+     * @param off Offset in out.
+     * @param len Number of vectors.
+     * @param filter Filter mode: FILTER_NEAREST, FILTER_BILINEAR or FILTER_TRILINEAR.
+     * @param footprint Solid angle of a pixel scaled by |dir|^3. Only used by trilinear filter, see {@link #lod(Vector3D, float)}.
+     */
+    public void sampleCubemap(float dx[], float dy[], float dz[], int out[], int off, int len, int filter, float footprint) {
+        sampleBatch(dx, dy, dz, out, off, len, filter, footprint, false, 0);
+    }
+    
+    /**
+     * Sample cubemap and reference with a batch of vectors given as separate arrays of components.
+     * Reads the vectors at indices [0, len) and writes the colors at indices [off, off + len) of out.
+     * @param dx X components of vectors.
+     * @param dy Y components of vectors.
+     * @param dz Z components of vectors.
+     * @param out Colors as 32 bits integers.
+     * @param off Offset in out.
+     * @param len Number of vectors.
+     * @param filter Filter mode: FILTER_NEAREST, FILTER_BILINEAR or FILTER_TRILINEAR.
+     * @param footprint Solid angle of a pixel scaled by |dir|^3. Only used by trilinear filter, see {@link #lod(Vector3D, float)}.
+     * @param ref Color for reference as 32 bits integer
+     */
+    public void sampleCubemapRef(float dx[], float dy[], float dz[], int out[], int off, int len, int filter, float footprint, int ref) {
+        sampleBatch(dx, dy, dz, out, off, len, filter, footprint, true, ref);
+    }
+    
+    /**
+     * Batch sampling. First projects all the vectors to faces, then samples the faces.
+     * Each pass is a tight loop over primitive arrays.
+     */
+    private void sampleBatch(float dx[], float dy[], float dz[], int out[], int off, int len, int filter, float footprint, boolean showRef, int ref) {
+        sampleBatch(KERNEL, dx, dy, dz, out, off, len, filter, footprint, showRef, ref);
+    }
+    
+    /**
+     * Batch sampling with the given kernel.
+     * With tiled layout, the projection uses the given kernel and the sampling uses the scalar tiled samplers.
+     */
+    void sampleBatch(SampleKernel kernel, float dx[], float dy[], float dz[], int out[], int off, int len, int filter, float footprint, boolean showRef, int ref) {
+        BatchScratch scratch = BATCH_SCRATCH.get();
+        scratch.ensureCapacity(len);
+        int face[] = scratch.face;
+        float u[] = scratch.u, v[] = scratch.v, axis[] = scratch.axis;
+        kernel.project(dx, dy, dz, face, u, v, axis, 0, len);
+        sampleProjected(kernel, face, u, v, axis, out, off, len, filter, footprint, showRef, ref);
+    }
+    
+    /**
+     * Sample cubemap with a batch of vectors already projected to the faces, see {@link SampleKernel#project}.
+     * Reads the coordinates at indices [0, len) and writes the colors at indices [off, off + len) of out.
+     * @param face Index of cubemap face.
+     * @param u Coordinate U.
+     * @param v Coordinate V. Zero at the top of the face.
+     * @param axis Absolute value of the major axis. Only used by trilinear filter.
+     * @param out Colors as 32 bits integers.
+     * @param off Offset in out.
+     * @param len Number of samples.
+     * @param filter Filter mode: FILTER_NEAREST, FILTER_BILINEAR or FILTER_TRILINEAR.
+     * @param footprint Solid angle of a pixel scaled by |dir|^3. Only used by trilinear filter.
+     * @param showRef true to draw the reference, false otherwise.
+     * @param ref Color for reference as 32 bits integer
+     */
+    void sampleProjected(int face[], float u[], float v[], float axis[], int out[], int off, int len, int filter, float footprint, boolean showRef, int ref) {
+        sampleProjected(KERNEL, face, u, v, axis, out, off, len, filter, footprint, showRef, ref);
+    }
+    
+    private void sampleProjected(SampleKernel kernel, int face[], float u[], float v[], float axis[], int out[], int off, int len, int filter, float footprint, boolean showRef, int ref) {
+        if(unrequestedFaces != 0){
+            int faces = 0;
+            for (int i = 0; i < len; i++) {
+                faces |= 1 << face[i];
+            }
+            if((unrequestedFaces & faces) != 0){
+                requestFaces(faces);
+            }
+        }
+        SampleKernel sampler = layout == LAYOUT_TILED ? TILED_KERNEL : kernel;
+        // Read once per batch, see installFace
+        int data[][][] = sampled;
+        switch (filter) {
+            case FILTER_TRILINEAR:
+                float lodBase = 0.5f * MathUtils.log2(footprint * size * size * 0.25f);
+                for (int i = 0; i < len; i++) {
+                    out[off + i] = sample2DTrilinear(data, face[i], u[i], v[i], lodBase - 1.5f * MathUtils.log2(axis[i]));
+                }
+                break;
+            case FILTER_BILINEAR:
+                sampler.sampleLinear(data[0], size, face, u, v, out, off, 0, len);
+                break;
+            default:
+                sampler.sampleNearest(data[0], size, face, u, v, out, off, 0, len);
+                break;
+        }
+        if (showRef) {
+            for (int i = 0; i < len; i++) {
+                if (reference(u[i], 1.0f - v[i], face[i])) {
+                    out[off + i] = ref;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Select the kernel for batch sampling.
+     * The vector kernel is used if it was compiled, the jdk.incubator.vector module is present
+     * and the platform supports it, unless the system property cubemap.vector is false.
+     * @return Sample kernel
+     */
+    private static SampleKernel createKernel(){
+        if(!"false".equalsIgnoreCase(System.getProperty("cubemap.vector"))){
+            try {
+                Class<?> vectorKernel = Class.forName("viewer.VectorKernel");
+                if(Boolean.TRUE.equals(vectorKernel.getDeclaredMethod("isSupported").invoke(null))){
+                    return (SampleKernel) vectorKernel.getDeclaredConstructor().newInstance();
+                }
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                // Fall back to scalar kernel
+            }
+        }
+        return SCALAR_KERNEL;
+    }
+    
+    /**
+     * Scalar implementation of the sample kernel.
      */
-    private static boolean pointInPolygon(float x, float y, Vector2D poly[]) {
-        boolean inside = false;
-        Vector2D p0, p1;
-        p0 = poly[poly.length-1];
-        for(int i = 0; i < poly.length; i++){
-            p1 = poly[i];
-            if((p0.y < y && p1.y > y) || (p0.y > y && p1.y < y)){
-               if((p0.x > x && p1.x > x) || x < ((y-p0.y)*(p1.x-p0.x)/(p1.y-p0.y)+p0.x)){
-                   inside = !inside;
-               }
+    static class ScalarKernel implements SampleKernel {
+        
+        @Override
+        public String getName(){
+            return "Scalar";
+        }
+        
+        @Override
+        public void project(float dx[], float dy[], float dz[], int face[], float u[], float v[], float axis[], int start, int end) {
+            // V grows downwards like the rows of the images
+            for (int i = start; i < end; i++) {
+                float x = dx[i], y = dy[i], z = dz[i];
+                float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+                int f;
+                float sc, tc, maxAxis;
+                if (az > ax && az > ay) {
+                    f = z >= 0.0f ? POSZ : NEGZ;
+                    sc = z >= 0.0f ? x : -x;
+                    tc = -y;
+                    maxAxis = az;
+                } else if (ay > ax) {
+                    f = y >= 0.0f ? POSY : NEGY;
+                    sc = x;
+                    tc = y >= 0.0f ? z : -z;
+                    maxAxis = ay;
+                } else {
+                    f = x >= 0.0f ? POSX : NEGX;
+                    sc = x >= 0.0f ? -z : z;
+                    tc = -y;
+                    maxAxis = ax;
+                }
+                float scale = 0.5f / maxAxis;
+                face[i] = f;
+                u[i] = sc * scale + 0.5f;
+                v[i] = tc * scale + 0.5f;
+                axis[i] = maxAxis;
+            }
+        }
+        
+        @Override
+        public void sampleNearest(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+            for (int i = start; i < end; i++) {
+                out[off + i] = sample2DNearest(faces[face[i]], size, u[i], v[i]);
             }
-            p0 = p1;
-        }        
-        return inside;
+        }
+        
+        @Override
+        public void sampleLinear(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+            for (int i = start; i < end; i++) {
+                out[off + i] = sample2DLinear(faces[face[i]], size, u[i], v[i]);
+            }
+        }
     }
     
+    /**
+     * Scalar implementation of the sample kernel for faces with tiled layout.
+     */
+    static class TiledKernel extends ScalarKernel {
+        
+        @Override
+        public String getName(){
+            return "Scalar tiled";
+        }
+        
+        @Override
+        public void sampleNearest(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+            for (int i = start; i < end; i++) {
+                out[off + i] = sample2DNearestTiled(faces[face[i]], size, u[i], v[i]);
+            }
+        }
+        
+        @Override
+        public void sampleLinear(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end) {
+            for (int i = start; i < end; i++) {
+                out[off + i] = sample2DLinearTiled(faces[face[i]], size, u[i], v[i]);
+            }
+        }
+    }
+
+    /**
+     * Rasterize the glyphs of a face into a bit mask.
+     * Each texel of the bounding box of the glyphs is set if its center is inside the polygons.
+     * @param cubemapFace Index of cubemap face
+     * @return Mask, rows of REFERENCE_MASK_WORDS words
+     */
+    private static long[] referenceMask(int cubemapFace){
+        long mask[] = new long[REFERENCE_MASK_ROWS * REFERENCE_MASK_WORDS];
+        boolean plus = cubemapFace == POSX || cubemapFace == POSY || cubemapFace == POSZ;
+        fillPolygon(mask, plus ? SIGN_PLUS_POINTS : SIGN_MINUS_POINTS);
+        switch(cubemapFace){
+            case POSX:
+            case NEGX:
+                fillPolygon(mask, LETTER_X_POINTS);
+                break;
+            case POSY:
+            case NEGY:
+                fillPolygon(mask, LETTER_Y_POINTS);
+                break;
+            default:
+                fillPolygon(mask, LETTER_Z_POINTS);
+                break;
+        }
+        return mask;
+    }
+
+    /**
+     * Set the texels of a mask whose centers are inside a polygon, row by row.
+     * A center is inside if it is between two crossings of its row with the edges (even-odd rule).
+     * @param mask Reference mask
+     * @param poly Array of points
+     */
+    private static void fillPolygon(long mask[], Vector2D poly[]){
+        float crossings[] = new float[poly.length];
+        for(int y = 0; y < REFERENCE_MASK_ROWS; y++){
+            float v = VMIN + (y + 0.5f) / REFERENCE_MASK_SIZE;
+            int count = 0;
+            Vector2D p0 = poly[poly.length-1];
+            for(Vector2D p1: poly){
+                if((p0.y < v && p1.y > v) || (p0.y > v && p1.y < v)){
+                    crossings[count++] = (v-p0.y)*(p1.x-p0.x)/(p1.y-p0.y)+p0.x;
+                }
+                p0 = p1;
+            }
+            Arrays.sort(crossings, 0, count);
+            for(int i = 0; i + 1 < count; i += 2){
+                // Texels with centers inside [crossings[i], crossings[i+1])
+                int start = Math.max((int) Math.ceil((crossings[i] - UMIN) * REFERENCE_MASK_SIZE - 0.5f), 0);
+                int end = Math.min((int) Math.ceil((crossings[i+1] - UMIN) * REFERENCE_MASK_SIZE - 0.5f), REFERENCE_MASK_COLUMNS);
+                for(int x = start; x < end; x++){
+                    mask[y * REFERENCE_MASK_WORDS + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
     /**
      * Test if a given point is inside cubemap reference.
+     * The glyphs are read from the mask of the face, a single lookup.
      * @param u Coordinate U
      * @param v Coordinate V
      * @param cubemapFace Index of cubemap face
@@ -403,29 +1598,9 @@ public class Cubemap {
         if(u < UMIN || u > UMAX || v < VMIN || v > VMAX){
             return false;
         }
-        boolean ref = false;
-        //Test if point is inside polygons
-        switch(cubemapFace){
-            case Cubemap.POSX:
-                ref = pointInPolygon(u, v, SIGN_PLUS_POINTS) || pointInPolygon(u, v, LETTER_X_POINTS);
-                break;
-            case Cubemap.NEGX:
-                ref = pointInPolygon(u, v, SIGN_MINUS_POINTS) || pointInPolygon(u, v, LETTER_X_POINTS);
-                break;
-            case Cubemap.POSY:
-                ref = pointInPolygon(u, v, SIGN_PLUS_POINTS) || pointInPolygon(u, v, LETTER_Y_POINTS);
-                break;
-            case Cubemap.NEGY:
-                ref = pointInPolygon(u, v, SIGN_MINUS_POINTS) || pointInPolygon(u, v, LETTER_Y_POINTS);
-                break;
-            case Cubemap.POSZ:
-                ref = pointInPolygon(u, v, SIGN_PLUS_POINTS) || pointInPolygon(u, v, LETTER_Z_POINTS);
-                break;
-            case Cubemap.NEGZ:
-                ref = pointInPolygon(u, v, SIGN_MINUS_POINTS) || pointInPolygon(u, v, LETTER_Z_POINTS);
-                break;
-        }
-        return ref;
+        int x = Math.min((int) ((u - UMIN) * REFERENCE_MASK_SIZE), REFERENCE_MASK_COLUMNS - 1);
+        int y = Math.min((int) ((v - VMIN) * REFERENCE_MASK_SIZE), REFERENCE_MASK_ROWS - 1);
+        return (REFERENCE_MASK[cubemapFace][y * REFERENCE_MASK_WORDS + (x >>> 6)] & (1L << x)) != 0;
     }
 
     /**
@@ -436,99 +1611,270 @@ public class Cubemap {
      * @return Color as 32 bits integer. 
      */
     public int sampleCubemapRef(Vector3D dir, boolean linear, int ref) {
-        float xuSign, xvSign, xAbs;
-        float yuSign, yvSign, yAbs;
-        float zuSign, zvSign, zAbs;
-        int xIndex, yIndex, zIndex;
-        if (dir.x >= 0.0f) {
-            xAbs = dir.x;
-            xIndex = POSX;
-            xuSign = -1.0f;
-            xvSign = 1.0f;
-        } else {
-            xAbs = -dir.x;
-            xIndex = NEGX;
-            xuSign = 1.0f;
-            xvSign = 1.0f;
-        }
-        if (dir.y >= 0.0f) {
-            yAbs = dir.y;
-            yIndex = POSY;
-            yuSign = 1.0f;
-            yvSign = -1.0f;
-        } else {
-            yAbs = -dir.y;
-            yIndex = NEGY;
-            yuSign = 1.0f;
-            yvSign = 1.0f;
+        return sample(dir, linear ? FILTER_BILINEAR : FILTER_NEAREST, 0.0f, true, ref);
+    }
+    
+    /**
+     * Sample cubemap and reference with vector. Trilinear interpolation between mipmap levels.
+     * @param dir 3D vector.
+     * @param lod Level of detail. See {@link #lod(Vector3D, float)}.
+     * @param ref Color for reference as 32 bits integer
+     * @return Color as 32 bits integer. 
+     */
+    public int sampleCubemapRefLod(Vector3D dir, float lod, int ref) {
+        return sample(dir, FILTER_TRILINEAR, lod, true, ref);
+    }
+    
+    /**
+     * Decode an image reading one of each subsampling rows and columns.
+     * The reader skips the other pixels, so it is faster than decoding the full image.
+     * @param imageFile The image file
+     * @param subsampling Read one of each subsampling rows and columns.
+     * @return The image, or null if there is no reader for the file.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static BufferedImage readSubsampled(File imageFile, int subsampling) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(imageFile)) {
+            if(stream == null){
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if(!readers.hasNext()){
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
         }
-        if (dir.z >= 0.0f) {
-            zAbs = dir.z;
-            zIndex = POSZ;
-            zuSign = 1.0f;
-            zvSign = 1.0f;
-        } else {
-            zAbs = -dir.z;
-            zIndex = NEGZ;
-            zuSign = -1.0f;
-            zvSign = 1.0f;
+    }
+    
+    /**
+     * Task that loads a face: decodes the file, validates if it is square, and converts the pixels to the base level.
+     */
+    private static class LoadFaceTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private final File imageFile;
+        private final int subsampling;
+        private int size;
+        private int data[];
+        private IOException error;
+        private long time;
+        
+        /**
+         * Creates a new load task.
+         * @param imageFile The image file
+         * @param subsampling Read one of each subsampling rows and columns.
+         */
+        public LoadFaceTask(File imageFile, int subsampling){
+            this.imageFile = imageFile;
+            this.subsampling = subsampling;
         }
-        int maxIndex = xIndex;
-        float u = dir.z, v = dir.y;
-        float uSign = xuSign, vSign = xvSign, maxAxis = xAbs;
-        if(yAbs > maxAxis){
-            maxAxis = yAbs;
-            maxIndex = yIndex;
-            u = dir.x;
-            v = dir.z;
-            uSign = yuSign;
-            vSign = yvSign;
+        
+        @Override
+        protected void compute(){
+            long start = System.nanoTime();
+            String fileName = imageFile.getName();
+            try {
+                BufferedImage image = subsampling > 1 ? readSubsampled(imageFile, subsampling) : ImageIO.read(imageFile);
+                if(image == null){
+                    throw new IOException("Couldn't open file: "+ fileName);
+                }
+                if(image.getWidth() != image.getHeight()){
+                    throw new IOException(fileName + " is not a square image");
+                }
+                size = image.getWidth();
+                int stride = size + 2 * BORDER;
+                data = new int[stride * stride];
+                new ConvertTask(image, data, 0, size).invoke();
+            } catch (IOException ex) {
+                error = ex;
+            }
+            time = System.nanoTime() - start;
         }
-        if(zAbs > maxAxis){
-            maxAxis = zAbs;
-            maxIndex = zIndex;
-            u = dir.x;
-            v = dir.y;
-            uSign = zuSign;
-            vSign = zvSign;
+    }
+    
+    /**
+     * Task that loads a face of a lazy cubemap: decodes the file, builds the mipmap levels of the face and installs them.
+     */
+    private class LazyFaceTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private final int face;
+        
+        /**
+         * Creates a new lazy load task.
+         * @param face Index of cubemap face
+         */
+        public LazyFaceTask(int face){
+            this.face = face;
         }
-        int data[] = imageData[maxIndex];
-        float nu = 0.5f * uSign * u / maxAxis + 0.5f;
-        float nv = 0.5f * vSign * v / maxAxis + 0.5f;
-
-        if(reference(nu, nv, maxIndex)){
-            return ref;
-        }              
-        if(linear){
-            return sample2DLinear(data, nu, nv);
-        }else{
-            return sample2DNearest(data, nu, nv);
+        
+        @Override
+        protected void compute(){
+            LoadFaceTask task = new LoadFaceTask(faceFiles[face], 1);
+            task.invoke();
+            if(task.error != null){
+                faceFailed(face, task.error);
+                return;
+            }
+            if(task.size != size){
+                faceFailed(face, new IOException("The 6 images have not the same size"));
+                return;
+            }
+            int data[][] = new int[levels][];
+            data[0] = task.data;
+            for(int level = 1; level < levels; level++){
+                int stride = levelSize[level] + 2 * BORDER;
+                data[level] = new int[stride * stride];
+                new DownsampleTask(data[level-1], levelSize[level-1], data[level], levelSize[level], 0, levelSize[level]).invoke();
+            }
+            installFace(face, data, task.time);
         }
     }
     
     /**
-     * Load an image, validate if it is square, and convert to BufferedImage.TYPE_INT_RGB if necessary.
-     * @param imageFile The image file
-     * @return The read image
-     * @throws IOException If couldn't open the file or if not a square image.
+     * Task that converts rows of an image to packed RGB pixels inside the border of a face.
+     * The common types of decoded images are read from the raster, other types through the color model.
+     * Translucent pixels are composited over black.
      */
-    private static BufferedImage readImageAsRgb(File imageFile) throws IOException {
-        String fileName = imageFile.getName();
-        BufferedImage image = ImageIO.read(imageFile);
-        if(image == null){
-            throw new IOException("Couldn't open file: "+ fileName);
+    private static class ConvertTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private static final int ROW_THRESHOLD = 64;
+        private final BufferedImage image;
+        private final int dst[];
+        private final int startRow, endRow;
+        
+        /**
+         * Creates a new convert task.
+         * @param image Source image, square.
+         * @param dst Pixels of face, including the border.
+         * @param startRow Start row.
+         * @param endRow End row. Not inclusive.
+         */
+        public ConvertTask(BufferedImage image, int dst[], int startRow, int endRow){
+            this.image = image;
+            this.dst = dst;
+            this.startRow = startRow;
+            this.endRow = endRow;
         }
-        if(image.getWidth() != image.getHeight()){
-            throw new IOException(fileName + " is not a square image");
+        
+        @Override
+        protected void compute(){
+            if(endRow - startRow > ROW_THRESHOLD){
+                int mid = (startRow + endRow) >>> 1;
+                invokeAll(new ConvertTask(image, dst, startRow, mid),
+                        new ConvertTask(image, dst, mid, endRow));
+                return;
+            }
+            int size = image.getWidth();
+            int stride = size + 2 * BORDER;
+            Raster raster = image.getRaster();
+            int type = image.getType();
+            int ints[] = null;
+            byte bytes[] = null;
+            switch(type){
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_ARGB_PRE:
+                case BufferedImage.TYPE_INT_BGR:
+                    ints = new int[size];
+                    break;
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    bytes = new byte[3 * size];
+                    break;
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                    bytes = new byte[4 * size];
+                    break;
+                case BufferedImage.TYPE_BYTE_GRAY:
+                    bytes = new byte[size];
+                    break;
+                default:
+                    ints = new int[size];
+                    type = BufferedImage.TYPE_CUSTOM;
+                    break;
+            }
+            for(int y = startRow; y < endRow; y++){
+                int out = (y + BORDER) * stride + BORDER;
+                // Samples of the rows of byte rasters are in band order: red, green, blue and alpha
+                switch(type){
+                    case BufferedImage.TYPE_INT_RGB:
+                    case BufferedImage.TYPE_INT_ARGB_PRE:
+                        raster.getDataElements(0, y, size, 1, ints);
+                        for(int x = 0; x < size; x++){
+                            dst[out + x] = ints[x] & 0x00FFFFFF;
+                        }
+                        break;
+                    case BufferedImage.TYPE_INT_ARGB:
+                        raster.getDataElements(0, y, size, 1, ints);
+                        for(int x = 0; x < size; x++){
+                            dst[out + x] = overBlack(ints[x]);
+                        }
+                        break;
+                    case BufferedImage.TYPE_INT_BGR:
+                        raster.getDataElements(0, y, size, 1, ints);
+                        for(int x = 0; x < size; x++){
+                            int c = ints[x];
+                            dst[out + x] = (c & 0xFF) << 16 | (c & 0xFF00) | (c >> 16 & 0xFF);
+                        }
+                        break;
+                    case BufferedImage.TYPE_3BYTE_BGR:
+                        raster.getDataElements(0, y, size, 1, bytes);
+                        for(int x = 0, i = 0; x < size; x++, i += 3){
+                            dst[out + x] = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+                        }
+                        break;
+                    case BufferedImage.TYPE_4BYTE_ABGR:
+                        raster.getDataElements(0, y, size, 1, bytes);
+                        for(int x = 0, i = 0; x < size; x++, i += 4){
+                            dst[out + x] = overBlack((bytes[i + 3] & 0xFF) << 24 | (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF));
+                        }
+                        break;
+                    case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                        raster.getDataElements(0, y, size, 1, bytes);
+                        for(int x = 0, i = 0; x < size; x++, i += 4){
+                            dst[out + x] = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+                        }
+                        break;
+                    case BufferedImage.TYPE_BYTE_GRAY:
+                        raster.getDataElements(0, y, size, 1, bytes);
+                        for(int x = 0; x < size; x++){
+                            dst[out + x] = (bytes[x] & 0xFF) * 0x010101;
+                        }
+                        break;
+                    default:
+                        image.getRGB(0, y, size, 1, ints, 0, size);
+                        for(int x = 0; x < size; x++){
+                            dst[out + x] = overBlack(ints[x]);
+                        }
+                        break;
+                }
+            }
         }
-        if(image.getType() != BufferedImage.TYPE_INT_RGB) {
-            BufferedImage imageRgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-            Graphics g = imageRgb.createGraphics();
-            g.drawImage(image, 0, 0, null);
-            g.dispose();
-            image = imageRgb;
+        
+        /**
+         * Composite a color over black.
+         * @param argb Color with alpha, not premultiplied.
+         * @return Color as 32 bit integer
+         */
+        private static int overBlack(int argb){
+            int a = argb >>> 24;
+            if(a == 0xFF){
+                return argb & 0x00FFFFFF;
+            }
+            int r = ((argb >> 16 & 0xFF) * a + 127) / 255;
+            int g = ((argb >> 8 & 0xFF) * a + 127) / 255;
+            int b = ((argb & 0xFF) * a + 127) / 255;
+            return (r << 16) | (g << 8) | b;
         }
-        return image;
     }
         
     /**
@@ -538,11 +1884,160 @@ public class Cubemap {
      * @throws IOException
      */
     public static Cubemap loadCubemap(String path) throws IOException {
+        return loadCubemap(path, LAYOUT_LINEAR);
+    }
+    
+    /**
+     * Load images from specified directory and returns a cubemap object with the given texel layout.
+     * @param path Path to valid cubemap directory.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     * @return Cubemap object
+     * @throws IOException
+     */
+    public static Cubemap loadCubemap(String path, int layout) throws IOException {
+        return loadCubemap(path, layout, 1);
+    }
+    
+    /**
+     * Load images from specified directory, reading one of each subsampling rows and columns of each image.
+     * A subsampled cubemap is a fast preview of the full cubemap: the faces are subsampling times smaller, rounded up.
+     * @param path Path to valid cubemap directory.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     * @param subsampling Read one of each subsampling rows and columns, 1 for full resolution.
+     * @return Cubemap object
+     * @throws IOException
+     * @throws java.io.InterruptedIOException If the thread is interrupted. The faces not started yet are not decoded.
+     */
+    public static Cubemap loadCubemap(String path, int layout, int subsampling) throws IOException {
+        return loadCubemap(path, layout, subsampling, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Load images from specified directory in the given pool, reading one of each subsampling rows and columns of each image.
+     * The images are decoded and converted, and the mipmap levels built, by the threads of the pool.
+     * @param path Path to valid cubemap directory.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     * @param subsampling Read one of each subsampling rows and columns, 1 for full resolution.
+     * @param pool Pool that loads the cubemap.
+     * @return Cubemap object
+     * @throws IOException
+     * @throws java.io.InterruptedIOException If the thread is interrupted. The faces not started yet are not decoded.
+     */
+    public static Cubemap loadCubemap(String path, final int layout, int subsampling, ForkJoinPool pool) throws IOException {
+        if(subsampling < 1){
+            throw new IllegalArgumentException("Invalid subsampling");
+        }
+        if(path == null){
+            throw new NullPointerException("path is null");
+        }
+        if(pool == null){
+            throw new NullPointerException("pool is null");
+        }
+        final File cubemapDir = new File(path);
+        File faceFiles[] = findFaceFiles(cubemapDir);
+        //Load images in parallel and construct cubemap
+        LoadFaceTask tasks[] = new LoadFaceTask[6];
+        for(int i = 0; i < 6; i++){
+            tasks[i] = new LoadFaceTask(faceFiles[i], subsampling);
+        }
+        runTasks(pool, tasks);
+        for(LoadFaceTask task: tasks){
+            if(task.error != null){
+                throw task.error;
+            }
+        }
+        final int baseLevel[][] = new int[6][];
+        for(int i = 0; i < 6; i++){
+            if(tasks[i].size != tasks[0].size){
+                throw new IOException("The 6 images have not the same size");
+            }
+            baseLevel[i] = tasks[i].data;
+        }
+        final int size = tasks[0].size;
+        // The mipmap levels are built in the pool too
+        ForkJoinTask<Cubemap> build = ForkJoinTask.adapt(new Callable<Cubemap>() {
+            @Override
+            public Cubemap call() {
+                return new Cubemap(cubemapDir.getName(), size, baseLevel, layout);
+            }
+        });
+        runTasks(pool, build);
+        Cubemap cubemap = build.join();
+        for(int i = 0; i < 6; i++){
+            cubemap.faceLoadTime[i] = tasks[i].time;
+        }
+        return cubemap;
+    }
+
+    
+    /**
+     * Run tasks of a load in a pool and wait for them.
+     * If the waiting thread is interrupted, the tasks not started yet are cancelled.
+     * @param pool Pool that runs the tasks
+     * @param tasks Tasks
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private static void runTasks(ForkJoinPool pool, ForkJoinTask<?>... tasks) throws InterruptedIOException {
+        if(Thread.interrupted()){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading interrupted");
+        }
+        for(ForkJoinTask<?> task: tasks){
+            pool.execute(task);
+        }
+        try {
+            for(ForkJoinTask<?> task: tasks){
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            for(ForkJoinTask<?> task: tasks){
+                task.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+    
+    /**
+     * Open a cubemap directory without decoding the images, only their headers, and returns a lazy cubemap.
+     * Each face is decoded in the background the first time it is sampled or requested, see {@link #requestFaces(int)}.
+     * Until then, it is sampled as the placeholder color. The faces never sampled don't use memory,
+     * besides one set of placeholder levels shared by all of them.
+     * @param path Path to valid cubemap directory.
+     * @param layout Texel layout: LAYOUT_LINEAR or LAYOUT_TILED.
+     * @param placeholder Color of the faces not loaded yet, as 32 bits integer.
+     * @return Cubemap object
+     * @throws IOException
+     */
+    public static Cubemap loadCubemapLazy(String path, int layout, int placeholder) throws IOException {
         if(path == null){
             throw new NullPointerException("path is null");
         }
-        File posXFile = null, negXFile = null, posYFile = null, negYFile = null, posZFile = null, negZFile = null;
         File cubemapDir = new File(path);
+        File faceFiles[] = findFaceFiles(cubemapDir);
+        int size = readFaceSize(faceFiles[0]);
+        for(int i = 1; i < 6; i++){
+            if(readFaceSize(faceFiles[i]) != size){
+                throw new IOException("The 6 images have not the same size");
+            }
+        }
+        return new Cubemap(cubemapDir.getName(), size, faceFiles, placeholder, layout);
+    }
+    
+    /**
+     * Find the images of the faces in a cubemap directory.
+     * @param cubemapDir Cubemap directory.
+     * @return Files of the faces. The order is: +X, -X, +Y, -Y, +Z, -Z.
+     * @throws IOException If the path is not a directory or a face is missing.
+     */
+    private static File[] findFaceFiles(File cubemapDir) throws IOException {
+        File posXFile = null, negXFile = null, posYFile = null, negYFile = null, posZFile = null, negZFile = null;
         if(!cubemapDir.isDirectory()){
             throw new IOException("Path " + cubemapDir.getName() + " is not a valid directory");
         }
@@ -583,20 +2078,34 @@ public class Cubemap {
         if(negZFile == null){
             throw new IOException("Couldn't find neither negz nor back");
         }
-        //Load images and construct cubemap
-        BufferedImage posXImage, negXImage, posYImage, negYImage, posZImage, negZImage;
-        posXImage = readImageAsRgb(posXFile);
-        negXImage = readImageAsRgb(negXFile);
-        posYImage = readImageAsRgb(posYFile);
-        negYImage = readImageAsRgb(negYFile);
-        posZImage = readImageAsRgb(posZFile);
-        negZImage = readImageAsRgb(negZFile);
-        if(posXImage.getWidth() != negXImage.getWidth() || negXImage.getWidth() != posYImage.getWidth() ||
-           posYImage.getWidth() != negYImage.getWidth() || negYImage.getWidth() != posZImage.getWidth() ||
-           posZImage.getWidth() != negZImage.getWidth()){
-            throw new IOException("The 6 images have not the same size");
-        }
-        return new Cubemap(cubemapDir.getName(), posXImage, negXImage, posYImage, negYImage, posZImage, negZImage);
+        return new File[]{posXFile, negXFile, posYFile, negYFile, posZFile, negZFile};
+    }
+    
+    /**
+     * Read the size of a face from the header of its image, without decoding it.
+     * @param imageFile The image file
+     * @return Width and height of the image.
+     * @throws IOException If the file couldn't be read or the image is not square.
+     */
+    private static int readFaceSize(File imageFile) throws IOException {
+        String fileName = imageFile.getName();
+        try (ImageInputStream stream = ImageIO.createImageInputStream(imageFile)) {
+            Iterator<ImageReader> readers = stream != null ? ImageIO.getImageReaders(stream) : null;
+            if(readers == null || !readers.hasNext()){
+                throw new IOException("Couldn't open file: "+ fileName);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                if(width != reader.getHeight(0)){
+                    throw new IOException(fileName + " is not a square image");
+                }
+                return width;
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
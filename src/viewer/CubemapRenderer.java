@@ -2,21 +2,37 @@ package viewer;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import math.Matrix33;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
 import java.awt.image.WritableRaster;
 import math.MathUtils;
-import math.Vector2D;
-import math.Vector3D;
 import java.awt.Graphics;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class for interactive rendering of cubemaps.
  * Performs processing and drawing of new images asynchronously.
+ * The setters post new parameters and wake up the render thread, which sleeps while there are no changes.
+ * Parameters posted while a frame is drawn are coalesced: the next frame uses only the newest values.
+ * Frames are drawn in a ring of buffers and presented by another thread, so the next frame is drawn
+ * while the previous one is copied to the screen, see {@link FrameRing}.
+ * Each change of parameters that needs new samples increases a generation counter. A frame whose generation
+ * is stale stops taking tiles and is not presented, and the newest parameters are drawn instead.
+ * While interactive (mouse dragging) the frames are sampled on a coarse grid of pixels and upscaled.
+ * When the interaction ends the grid is refined in the next frames, reusing the samples already taken.
+ * With a target frame time, the resolution of the frames is scaled from the measured frame times
+ * and the frames are scaled up to the window size.
+ * Equirectangular frames with an offset of a whole number of pixels are copied from a cached frame
+ * with offset zero, shifting the rows, so panning needs no sampling.
+ * Each frame is split in square tiles, drawn in parallel by the workers of a fork-join pool.
+ * The workers take the next tile from a shared counter until there are no more tiles left.
  * @author edu
  */
 public class CubemapRenderer extends Thread {
@@ -36,7 +52,21 @@ public class CubemapRenderer extends Thread {
         public static final int RP_REF_COLOR = 1 << 7;
         public static final int RP_RENDER_TYPE = 1 << 8;
         public static final int RP_EQUIRECT_OFFSET = 1 << 9;
-        public static final int RP_ALL = RP_CUBEMAP | RP_WINDOW_SIZE | RP_FOV | RP_ORIENTATION | RP_REFERENCE | RP_LERP | RP_SHOW_INFO | RP_REF_COLOR | RP_RENDER_TYPE | RP_EQUIRECT_OFFSET;
+        public static final int RP_MIPMAP = 1 << 10;
+        public static final int RP_TILE_SIZE = 1 << 11;
+        public static final int RP_FRAME_BUFFERS = 1 << 12;
+        public static final int RP_FRAME_PACING = 1 << 13;
+        public static final int RP_INTERACTIVE = 1 << 14;
+        public static final int RP_PROGRESSIVE_SCALE = 1 << 15;
+        public static final int RP_TARGET_FRAME_TIME = 1 << 16;
+        public static final int RP_EQUIRECT_ORIENTATION = 1 << 17;
+        // Faces of the lazy cubemap loaded, see faces
+        public static final int RP_FACES = 1 << 18;
+        public static final int RP_ALL = RP_CUBEMAP | RP_WINDOW_SIZE | RP_FOV | RP_ORIENTATION | RP_REFERENCE | RP_LERP | RP_SHOW_INFO | RP_REF_COLOR | RP_RENDER_TYPE | RP_EQUIRECT_OFFSET | RP_MIPMAP | RP_TILE_SIZE | RP_FRAME_BUFFERS | RP_FRAME_PACING | RP_INTERACTIVE | RP_PROGRESSIVE_SCALE | RP_TARGET_FRAME_TIME | RP_EQUIRECT_ORIENTATION | RP_FACES;
+        // Parameters that change the cached equirectangular frame, besides the size. The frame has every face.
+        public static final int RP_EQUIRECT_STRIP = RP_CUBEMAP | RP_REFERENCE | RP_REF_COLOR | RP_LERP | RP_MIPMAP | RP_FACES;
+        // Parameters that do not change the sampled image
+        public static final int RP_NO_RESAMPLE = RP_SHOW_INFO | RP_TILE_SIZE | RP_FRAME_BUFFERS | RP_FRAME_PACING | RP_INTERACTIVE | RP_PROGRESSIVE_SCALE | RP_TARGET_FRAME_TIME;
         public int flags;
         public int renderType;
         public Cubemap cubemap;
@@ -45,21 +75,40 @@ public class CubemapRenderer extends Thread {
         public Matrix33 orientation;
         public boolean showReference;
         public boolean lerp;
+        public boolean mipmap;
         public boolean showInfo;
         public int refColor;
         public float equiRectOffset;
+        public Matrix33 equirectOrientation;
+        public int tileSize;
+        public int frameBuffers;
+        public int framePacing;
+        public boolean interactive;
+        public int progressiveScale;
+        public float targetFrameTime;
+        // Time the cubemap started opening, zero if not tracked
+        public long openTime;
+        // Mask of the faces loaded since the last frame
+        public int faces;
         
         public RenderParams(){
             fov = 75.0f;
             orientation = new Matrix33(1.0f);
+            equirectOrientation = new Matrix33(1.0f);
             lerp = true;
+            mipmap = false;
             showInfo = true;
             refColor = 0x000000FF;
+            tileSize = DEFAULT_TILE_SIZE;
+            frameBuffers = FrameRing.MAX_BUFFERS;
+            framePacing = PACING_LATEST;
+            progressiveScale = DEFAULT_PROGRESSIVE_SCALE;
         }
 
         public RenderParams copy(){
             RenderParams copy = new RenderParams();
             copy.flags = flags;
+            copy.renderType = renderType;
             copy.cubemap = cubemap;
             copy.width = width;
             copy.height = height;
@@ -67,9 +116,19 @@ public class CubemapRenderer extends Thread {
             copy.orientation.assign(orientation);
             copy.showReference = showReference;
             copy.lerp = lerp;
+            copy.mipmap = mipmap;
             copy.showInfo = showInfo;
             copy.refColor = refColor;
             copy.equiRectOffset = equiRectOffset;
+            copy.equirectOrientation.assign(equirectOrientation);
+            copy.tileSize = tileSize;
+            copy.frameBuffers = frameBuffers;
+            copy.framePacing = framePacing;
+            copy.interactive = interactive;
+            copy.progressiveScale = progressiveScale;
+            copy.targetFrameTime = targetFrameTime;
+            copy.openTime = openTime;
+            copy.faces = faces;
             return copy;
         }
     }
@@ -78,31 +137,132 @@ public class CubemapRenderer extends Thread {
     public static final int RT_EQUIRECT = 1;
     public static final int RT_UNWRAPPED = 2;
     
+    /**
+     * Default width and height of the tiles drawn by each task.
+     */
+    public static final int DEFAULT_TILE_SIZE = 32;
+    
+    /**
+     * Frame pacing: present the newest frame, dropping the queued frames not presented yet.
+     */
+    public static final int PACING_LATEST = 0;
+    /**
+     * Frame pacing: present every frame in order, drawing waits for a free buffer.
+     */
+    public static final int PACING_QUEUE = 1;
+    
+    /**
+     * Default resolution divisor of interactive frames.
+     */
+    public static final int DEFAULT_PROGRESSIVE_SCALE = 2;
+    
+    /**
+     * Minimum resolution scale with a target frame time.
+     */
+    public static final float MIN_RESOLUTION_SCALE = 0.25f;
+    // Resolution scales are multiples of this step
+    private static final float RESOLUTION_STEP = 1.0f / 16.0f;
+    // The resolution is increased below this fraction of the target frame time
+    private static final float LOW_FRAME_TIME = 0.7f;
+    // Fraction of the target frame time the new resolution is aimed at, in the middle of the band
+    private static final float AIM_FRAME_TIME = 0.85f;
+    // Consecutive frames out of the band before changing the resolution
+    private static final int ADAPT_FRAMES = 3;
+    
+    // Maximum number of consecutive cancelled frames. The next frame is completed, so the image is updated during a continuous drag.
+    private static final int MAX_CANCELLED_FRAMES = 2;
+    // Size of the window of the view whose faces are loaded ahead of time, relative to the view. See FaceRasterizer.faceMask.
+    private static final float PREFETCH_MARGIN = 1.5f;
+    
     private final CubemapViewer viewer;
     private int renderType;
     private Cubemap cubemap;
     private final RenderParams rp;
+    private FrameRing frameRing;
+    private Presenter presenter;
     private BufferedImage colorBufferImage;
     private int colorBuffer[];
     private int windowWidth, windowHeight;
+    // Size of drawn frames, scaled to the window size
+    private int renderWidth, renderHeight;
+    private volatile float resolutionScale = 1.0f;
+    private float targetFrameTime, adaptFrameTime;
+    private int adaptFrames;
+    private int scaledBuffer[];
+    private ImageScaler scaler;
+    // If the last frame has to be drawn again
+    private boolean redraw;
     private final float projDistance = 5.0f;
     private float fov, aspectRatio;
     private float windowLeft, windowRight, xRange;
     private float windowBottom, windowTop, yRange;
+    private CameraRays cameraRays;
+    private EquirectRays equirectRays;
+    // Equirectangular frame with offset zero, at the render size
+    private int equirectStrip[];
+    private boolean equirectStripValid;
+    private int equirectStripWidth;
+    // Unwrapped layout of the last unwrapped frame
+    private UnwrappedLayout unwrappedLayout;
     private final Matrix33 orientation;
-    private boolean showReference, showInfo, lerp;
+    private boolean showReference, showInfo, lerp, mipmap;
     private int refColor;
     private float equiRectOffset;
-    private boolean alive;
-    private int avalaibleProcessors;
-    private ImageProcessor processors[];
+    private final Matrix33 equirectOrientation;
+    private volatile boolean alive;
+    // Generation of the render parameters, increased on each change that needs new samples
+    private volatile int generation;
+    // Generation of the frame being drawn
+    private int frameGeneration;
+    private volatile boolean cancellable;
+    private int cancelledInRow, cancelledSum;
+    private volatile int cancelledFrames;
+    private int availableProcessors;
+    private ForkJoinPool pool;
     private long frames, lastTime;
     private float fps;
+    private long frameTimeSum;
+    private volatile float frameTime;
+    private int tileSize;
+    private boolean interactive;
+    private int progressiveScale;
+    // Samples of progressive frames, kept between frames. Valid on a grid of pixels with spacing sampledStep, zero if not valid.
+    private int sampleBuffer[];
+    private int sampledStep;
+    // Pass being drawn: spacing of the grid, spacing of the grid already sampled (zero if none) and output pixels
+    private int passStep, passPrevStep;
+    private int passBuffer[];
+    // Busy time of each worker in the frames of the last second
+    private long busyTimeSum[];
+    private volatile float busyTime[] = new float[0];
+    private final long ringStats[] = new long[3];
+    private volatile float presentTime, presentOverlap;
+    private volatile int droppedFrames;
+    // Open time of the cubemap whose first frame was not presented yet, and of the cubemap of each frame buffer
+    private final AtomicLong pendingOpenTime = new AtomicLong();
+    private final long frameOpenTime[] = new long[FrameRing.MAX_BUFFERS];
+    private volatile float timeToFirstFrame;
+    // Draws again when a face of a lazy cubemap is loaded.
+    // The generation is not incremented, so the frame being drawn is not cancelled.
+    private final Cubemap.FaceListener faceListener = new Cubemap.FaceListener() {
+        @Override
+        public void faceLoaded(Cubemap loaded, int face) {
+            synchronized(rp){
+                if(rp.cubemap == loaded){
+                    rp.flags |= RenderParams.RP_FACES;
+                    rp.faces |= 1 << face;
+                    rp.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void faceFailed(Cubemap loaded, int face, IOException error) {
+        }
+    };
     private final Color fontBgColor = new Color(0, 0, 0, 80);
     private final DecimalFormat df = new DecimalFormat("###.##");
     private final Font font = new Font("Tahoma", Font.PLAIN, 11);
-    private final int sphereSamples = 16;
-    private final Vector3D sphereVec[][];
     
     /**
      * Creates a new Cubemap Renderer
@@ -117,37 +277,27 @@ public class CubemapRenderer extends Thread {
         rp = new RenderParams();
         fov = 75.0f;
         orientation = new Matrix33(1.0f);
+        equirectOrientation = new Matrix33(1.0f);
         showInfo = true;
         lerp = true;
+        mipmap = false;
         refColor = 0x000000FF;
-        //Precalculate points on the unit sphere
-        sphereVec = new Vector3D[sphereSamples][sphereSamples]; 
-        float u, v;
-        for(int i = 0; i < sphereSamples; ++i) {
-            v = (float)i/(float)(sphereSamples-1);
-            for(int j = 0; j < sphereSamples; ++j) {
-                u = (sphereSamples-1-j+0.5f)/(float)sphereSamples;
-                Vector3D dir = new Vector3D();
-                dir.x = (float)(Math.cos(2.0*Math.PI*u)*Math.sin(Math.PI*v));
-                dir.y = (float)Math.cos(Math.PI*v);
-                dir.z = (float)(Math.sin(2.0*Math.PI*u)*Math.sin(Math.PI*v));
-                sphereVec[i][j] = dir;
-            }
-        }
+        tileSize = DEFAULT_TILE_SIZE;
+        progressiveScale = DEFAULT_PROGRESSIVE_SCALE;
     }
     
     /**
      * Start processing of new parameters and drawing. Ignored if already started.
      */
     public void init(){
-        if (processors == null) {
-            avalaibleProcessors = Runtime.getRuntime().availableProcessors();
-            processors = new ImageProcessor[avalaibleProcessors];
-            for (int i = 0; i < avalaibleProcessors; i++) {
-                processors[i] = new ImageProcessor();
-                processors[i].start();
-            }
+        if (pool == null) {
+            availableProcessors = Runtime.getRuntime().availableProcessors();
+            pool = new ForkJoinPool(availableProcessors);
+            busyTimeSum = new long[availableProcessors];
+            frameRing = new FrameRing(FrameRing.MAX_BUFFERS, true);
+            presenter = new Presenter();
             alive = true;
+            presenter.start();
             start();
         }
     }
@@ -157,23 +307,24 @@ public class CubemapRenderer extends Thread {
      */
     public void release(){
         if(isAlive()){
-            alive = false;
+            synchronized(rp){
+                alive = false;
+                rp.notifyAll();
+            }
+            frameRing.close();
             try {
                 join();
+                presenter.join();
             } catch (InterruptedException ex) {
             }
-            for (int i = 0; i < avalaibleProcessors; i++) {
-                processors[i].alive = false;
-                try {
-                    processors[i].join();
-                } catch (InterruptedException ex) {
-                }
-            }
-            processors = null;
+            pool.shutdown();
+            pool = null;
         }
     }
     
     private void calculateProjection(){
+        renderWidth = Math.max(1, Math.round(windowWidth * resolutionScale));
+        renderHeight = Math.max(1, Math.round(windowHeight * resolutionScale));
         aspectRatio = (float)windowWidth / (float)windowHeight;
         windowRight = (float) (projDistance * Math.tan(Math.toRadians(fov) / 2.0));
         windowLeft = -windowRight;
@@ -181,6 +332,36 @@ public class CubemapRenderer extends Thread {
         windowTop = windowRight / aspectRatio;
         windowBottom = -windowTop;
         yRange = windowTop * 2.0f;
+        if(windowWidth > 0 && windowHeight > 0){
+            // Camera space rays only change with the size and the field of view
+            cameraRays = new CameraRays(windowLeft, windowBottom, xRange, yRange, projDistance, renderWidth, renderHeight);
+        }
+    }
+    
+    /**
+     * Mark a parameter as changed and wake up the render thread. Must be called holding the lock of rp.
+     * Parameters that don't need new samples don't cancel the frame being drawn.
+     * @param flag Flag of the changed parameter.
+     */
+    private void post(int flag){
+        rp.flags |= flag;
+        if ((flag & ~RenderParams.RP_NO_RESAMPLE) != 0) {
+            generation++;
+        }
+        rp.notifyAll();
+    }
+    
+    /**
+     * Get filter mode for sampling the cubemap.
+     * @param lerp If linear interpolation will be used.
+     * @param mipmap If mipmaps will be used. Only with linear interpolation.
+     * @return Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     */
+    private static int getFilter(boolean lerp, boolean mipmap){
+        if(!lerp){
+            return Cubemap.FILTER_NEAREST;
+        }
+        return mipmap ? Cubemap.FILTER_TRILINEAR : Cubemap.FILTER_BILINEAR;
     }
     
     /**
@@ -189,7 +370,7 @@ public class CubemapRenderer extends Thread {
      */
     public void setRenderType(int type) {
         synchronized(rp) {
-            rp.flags |= RenderParams.RP_RENDER_TYPE;
+            post(RenderParams.RP_RENDER_TYPE);
             rp.renderType = type;
         }
     }
@@ -220,11 +401,39 @@ public class CubemapRenderer extends Thread {
      */
     public void setEquirectOffset(float offset){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_EQUIRECT_OFFSET;
+            post(RenderParams.RP_EQUIRECT_OFFSET);
             rp.equiRectOffset = offset;
         }
     }
     
+    /**
+     * Get orientation of equirectangular image from current render parameters.
+     * @return Orientation matrix
+     */
+    public Matrix33 getEquirectOrientation(){
+        Matrix33 mat = new Matrix33();
+        synchronized(rp){
+            mat.assign(rp.equirectOrientation);
+        }
+        return mat;
+    }
+    
+    /**
+     * Set orientation of equirectangular image, applied after the horizontal offset.
+     * Pitch and roll level the horizon or reorient the panorama. A rotation only around the Y axis
+     * (yaw) is drawn as cheaply as the offset.
+     * @param orientation Orientation matrix.
+     */
+    public void setEquirectOrientation(Matrix33 orientation){
+        if(orientation == null){
+            throw new NullPointerException();
+        }
+        synchronized(rp){
+            post(RenderParams.RP_EQUIRECT_ORIENTATION);
+            rp.equirectOrientation.assign(orientation);
+        }
+    }
+    
     /**
      * Get width from current render parameters.
      * @return Width of rendered image.
@@ -259,7 +468,7 @@ public class CubemapRenderer extends Thread {
             throw new IllegalArgumentException("Invalid render size");
         }
         synchronized(rp){
-            rp.flags |= RenderParams.RP_WINDOW_SIZE;
+            post(RenderParams.RP_WINDOW_SIZE);
             rp.width = width;
             rp.height = height;
         }
@@ -286,7 +495,7 @@ public class CubemapRenderer extends Thread {
             throw new NullPointerException();
         }
         synchronized(rp){
-            rp.flags |= RenderParams.RP_ORIENTATION;
+            post(RenderParams.RP_ORIENTATION);
             rp.orientation.assign(orientation);
         }
     }
@@ -309,7 +518,7 @@ public class CubemapRenderer extends Thread {
      */
     public void setFov(float fov){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_FOV;
+            post(RenderParams.RP_FOV);
             rp.fov = MathUtils.clamp(fov, 2.0f, 175.0f);
         }
     }
@@ -332,7 +541,7 @@ public class CubemapRenderer extends Thread {
      */
     public void showReference(boolean showReference){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_REFERENCE;
+            post(RenderParams.RP_REFERENCE);
             rp.showReference = showReference;
         }
     }
@@ -355,11 +564,34 @@ public class CubemapRenderer extends Thread {
      */
     public void setLerp(boolean lerp){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_LERP;
+            post(RenderParams.RP_LERP);
             rp.lerp = lerp;
         }
     }
     
+    /**
+     * Checks if mipmaps are enabled from current render parameters.
+     * @return true if mipmaps are enabled, false otherwise.
+     */
+    public boolean isMipmap(){
+        boolean value;
+        synchronized(rp){
+            value = rp.mipmap;
+        }
+        return value;
+    }
+    
+    /**
+     * Enable/Disable use of mipmaps. Only used with linear interpolation (trilinear filter).
+     * @param mipmap true if mipmaps will be used, false otherwise.
+     */
+    public void setMipmap(boolean mipmap){
+        synchronized(rp){
+            post(RenderParams.RP_MIPMAP);
+            rp.mipmap = mipmap;
+        }
+    }
+    
     /**
      * Get cubemap from current render parameters.
      * @return Cubemap image.
@@ -377,12 +609,34 @@ public class CubemapRenderer extends Thread {
      * @param cubemap Cubemap image. If null a black image will be drawn.
      */
     public void setCubemap(Cubemap cubemap){
+        setCubemap(cubemap, 0L);
+    }
+    
+    /**
+     * Set new cubemap to be processed, tracking the time to the first frame that shows it.
+     * See {@link #getTimeToFirstFrame()}.
+     * @param cubemap Cubemap image. If null a black image will be drawn.
+     * @param openTime Time the cubemap started opening, from System.nanoTime(), or zero not to track it.
+     * If the first frame of the last tracked cubemap was not presented yet, it keeps being tracked.
+     */
+    public void setCubemap(Cubemap cubemap, long openTime){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_CUBEMAP;
+            post(RenderParams.RP_CUBEMAP);
             rp.cubemap = cubemap;
+            if(openTime != 0L){
+                rp.openTime = openTime;
+            }
         }
     }
     
+    /**
+     * Get time from the start of opening the last tracked cubemap to the presentation of its first frame.
+     * @return time in milliseconds, zero if no frame was presented yet.
+     */
+    public float getTimeToFirstFrame(){
+        return timeToFirstFrame;
+    }
+    
     /**
      * Checks if text info (fps, fov, filter) is enabled from current render parameters.
      * @return true if showing info, false otherwise
@@ -401,7 +655,7 @@ public class CubemapRenderer extends Thread {
      */
     public void setShowInfo(boolean showInfo){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_SHOW_INFO;
+            post(RenderParams.RP_SHOW_INFO);
             rp.showInfo = showInfo;
         }
     }
@@ -424,27 +678,294 @@ public class CubemapRenderer extends Thread {
      */
     public void setRefColor(int color){
         synchronized(rp){
-            rp.flags |= RenderParams.RP_REF_COLOR;
+            post(RenderParams.RP_REF_COLOR);
             rp.refColor = color;
         }
     }
     
     /**
-     * Update frames per second.
+     * Get tile size from current render parameters.
+     * @return Width and height of tiles.
+     */
+    public int getTileSize(){
+        int value;
+        synchronized(rp){
+            value = rp.tileSize;
+        }
+        return value;
+    }
+    
+    /**
+     * Set width and height of the tiles drawn by each task.
+     * Small tiles balance the load better, large tiles have less overhead.
+     * @param tileSize Tile size in pixels. Clamped to [8, 1024].
+     */
+    public void setTileSize(int tileSize){
+        synchronized(rp){
+            post(RenderParams.RP_TILE_SIZE);
+            rp.tileSize = MathUtils.clamp(tileSize, 8, 1024);
+        }
+    }
+    
+    /**
+     * Checks if interactive mode is enabled from current render parameters.
+     * @return true if interactive, false otherwise.
+     */
+    public boolean isInteractive(){
+        boolean value;
+        synchronized(rp){
+            value = rp.interactive;
+        }
+        return value;
+    }
+    
+    /**
+     * Enable/Disable interactive mode, for example while dragging the mouse.
+     * Interactive frames are drawn at a lower resolution, see {@link #setProgressiveScale(int)}.
+     * When disabled, the last frame is refined to full resolution in the next frames.
+     * @param interactive true when interaction starts, false when it ends.
+     */
+    public void setInteractive(boolean interactive){
+        synchronized(rp){
+            post(RenderParams.RP_INTERACTIVE);
+            rp.interactive = interactive;
+        }
+    }
+    
+    /**
+     * Get resolution divisor of interactive frames from current render parameters.
+     * @return 1, 2 or 4.
+     */
+    public int getProgressiveScale(){
+        int value;
+        synchronized(rp){
+            value = rp.progressiveScale;
+        }
+        return value;
+    }
+    
+    /**
+     * Set resolution divisor of interactive frames.
+     * @param scale 2 or 4 to draw one pixel of each 2x2 or 4x4 block, 1 to draw interactive frames at full resolution.
+     */
+    public void setProgressiveScale(int scale){
+        if(scale != 1 && scale != 2 && scale != 4){
+            throw new IllegalArgumentException("Invalid progressive scale");
+        }
+        synchronized(rp){
+            post(RenderParams.RP_PROGRESSIVE_SCALE);
+            rp.progressiveScale = scale;
+        }
+    }
+    
+    /**
+     * Get target frame time from current render parameters.
+     * @return Target frame time in milliseconds, zero if disabled.
+     */
+    public float getTargetFrameTime(){
+        float value;
+        synchronized(rp){
+            value = rp.targetFrameTime;
+        }
+        return value;
+    }
+    
+    /**
+     * Set target frame time. The resolution of perspective and equirectangular frames is scaled down
+     * when the frames take longer, and scaled up when they take less than 70% of the target.
+     * Changes need several frames out of that band, so the resolution does not oscillate.
+     * @param time Target frame time in milliseconds, for example 16.6. Zero to always draw at full resolution.
+     */
+    public void setTargetFrameTime(float time){
+        if(time < 0.0f){
+            throw new IllegalArgumentException("Invalid target frame time");
+        }
+        synchronized(rp){
+            post(RenderParams.RP_TARGET_FRAME_TIME);
+            rp.targetFrameTime = time;
+        }
+    }
+    
+    /**
+     * Get the current resolution scale of the frames relative to the window size.
+     * @return Scale in range [MIN_RESOLUTION_SCALE, 1].
+     */
+    public float getResolutionScale(){
+        return resolutionScale;
+    }
+    
+    /**
+     * Adapt the resolution scale to the target frame time.
+     * @param drawTime Time to draw the last frame at full resolution (estimated for coarse frames), in nanoseconds.
+     * @return true if the scale was changed.
+     */
+    private boolean adaptResolution(long drawTime){
+        float scale = resolutionScale;
+        if (targetFrameTime <= 0.0f) {
+            scale = 1.0f;
+        } else {
+            float time = drawTime / 1.0e6f;
+            adaptFrameTime = adaptFrames == 0 ? time : adaptFrameTime + 0.5f * (time - adaptFrameTime);
+            boolean slow = time > targetFrameTime;
+            boolean fast = time < targetFrameTime * LOW_FRAME_TIME && scale < 1.0f;
+            if (!slow && !fast) {
+                adaptFrames = 0;
+            } else if (++adaptFrames >= ADAPT_FRAMES) {
+                // Frame time is proportional to the number of pixels
+                scale *= (float) Math.sqrt(targetFrameTime * AIM_FRAME_TIME / adaptFrameTime);
+                scale = MathUtils.clamp(Math.round(scale / RESOLUTION_STEP) * RESOLUTION_STEP, MIN_RESOLUTION_SCALE, 1.0f);
+                adaptFrames = 0;
+            }
+        }
+        if (scale == resolutionScale) {
+            return false;
+        }
+        resolutionScale = scale;
+        calculateProjection();
+        return true;
+    }
+    
+    /**
+     * Get number of frame buffers from current render parameters.
+     * @return Number of frame buffers.
+     */
+    public int getFrameBuffers(){
+        int value;
+        synchronized(rp){
+            value = rp.frameBuffers;
+        }
+        return value;
+    }
+    
+    /**
+     * Set number of frame buffers. With two buffers a frame is drawn while the previous one is presented,
+     * with three buffers a finished frame can also wait for presentation.
+     * @param count Number of buffers. Clamped to [2, 3].
+     */
+    public void setFrameBuffers(int count){
+        synchronized(rp){
+            post(RenderParams.RP_FRAME_BUFFERS);
+            rp.frameBuffers = MathUtils.clamp(count, 2, FrameRing.MAX_BUFFERS);
+        }
+    }
+    
+    /**
+     * Get frame pacing from current render parameters.
+     * @return PACING_LATEST or PACING_QUEUE.
+     */
+    public int getFramePacing(){
+        int value;
+        synchronized(rp){
+            value = rp.framePacing;
+        }
+        return value;
+    }
+    
+    /**
+     * Set frame pacing.
+     * @param pacing PACING_LATEST to present the newest frame, PACING_QUEUE to present every frame.
+     */
+    public void setFramePacing(int pacing){
+        if(pacing != PACING_LATEST && pacing != PACING_QUEUE){
+            throw new IllegalArgumentException("Invalid frame pacing");
+        }
+        synchronized(rp){
+            post(RenderParams.RP_FRAME_PACING);
+            rp.framePacing = pacing;
+        }
+    }
+    
+    /**
+     * Get the time to present a frame on screen, averaged over the last second.
+     * @return present time in milliseconds
+     */
+    public float getPresentTime(){
+        return presentTime;
+    }
+    
+    /**
+     * Get the fraction of the present time overlapped with drawing, over the last second.
+     * Presenting in the drawing thread, as with a single buffer, would have an overlap of zero.
+     * @return overlap in percent
+     */
+    public float getPresentOverlap(){
+        return presentOverlap;
+    }
+    
+    /**
+     * Get number of frames drawn but not presented in the last second, because a newer frame was ready.
+     * Only with PACING_LATEST.
+     * @return dropped frames
+     */
+    public int getDroppedFrames(){
+        return droppedFrames;
+    }
+    
+    /**
+     * Get number of frames cancelled in the last second, because newer parameters were set while drawing.
+     * @return cancelled frames
+     */
+    public int getCancelledFrames(){
+        return cancelledFrames;
+    }
+    
+    /**
+     * Get the time each worker spent drawing tiles, per frame, averaged over the last second.
+     * Similar values mean the load is balanced between workers.
+     * @return busy time of each worker in milliseconds
+     */
+    public float[] getWorkerBusyTime(){
+        return busyTime.clone();
+    }
+    
+    /**
+     * Get the time to draw a frame, averaged over the last second.
+     * Measured from the start of the parallel drawing until all the rows are done.
+     * @return frame time in milliseconds
      */
-    private void fps(){
-        frames++;
+    public float getFrameTime(){
+        return frameTime;
+    }
+    
+    /**
+     * Update frames per second and frame time.
+     * @param drawTime Time to draw the last frame in nanoseconds
+     * @param cancelled If the frame was cancelled.
+     */
+    private void fps(long drawTime, boolean cancelled){
+        if(cancelled){
+            cancelledSum++;
+        }else{
+            frames++;
+            frameTimeSum += drawTime;
+        }
         long time = System.currentTimeMillis();
         long diff = time - lastTime;
-        if(diff >= 1000){
+        if(diff >= 1000 && frames > 0){
             fps = frames * 1000.0f / diff;
+            frameTime = frameTimeSum / 1.0e6f / frames;
+            // Cancelled frames also keep the workers busy
+            float busy[] = new float[busyTimeSum.length];
+            for(int i = 0; i < busy.length; i++){
+                busy[i] = busyTimeSum[i] / 1.0e6f / (frames + cancelledSum);
+                busyTimeSum[i] = 0;
+            }
+            cancelledFrames = cancelledSum;
+            cancelledSum = 0;
+            busyTime = busy;
+            // The time drawing waited for a buffer is the part of the present time not overlapped
+            frameRing.takeStats(ringStats);
+            presentTime = ringStats[1] / 1.0e6f / frames;
+            presentOverlap = ringStats[1] > 0 ? 100.0f * MathUtils.clamp(1.0f - (float) ringStats[0] / ringStats[1], 0.0f, 1.0f) : 0.0f;
+            droppedFrames = (int) ringStats[2];
             frames = 0;
+            frameTimeSum = 0;
             lastTime = time;
         }
     }
     
     /**
-     * Draw info on rendered image: fps, fov, and interpolation method.
+     * Draw info on rendered image: fps, fov, interpolation method and parallel efficiency.
      * @param renderType Render type
      */
     protected void drawInfo(int renderType) {
@@ -452,202 +973,101 @@ public class CubemapRenderer extends Thread {
             Graphics g = colorBufferImage.createGraphics();
             g.setFont(font);
             g.setColor(fontBgColor);
-            g.fillRect(5, 5, 110, 55);
+            g.fillRect(5, 5, 110, 115);
             g.setColor(Color.WHITE);
             g.drawString("FPS: "+df.format(fps), 15, 20);
-            g.drawString("FOV: "+df.format(fov), 15, 35);
-            g.drawString("FILTER: "+ (lerp ? "Bilinear": "Nearest"), 15, 50);
+            g.drawString("FRAME: "+df.format(frameTime)+" ms", 15, 35);
+            g.drawString("FOV: "+df.format(fov), 15, 50);
+            g.drawString("FILTER: "+ (lerp ? (mipmap ? "Trilinear" : "Bilinear") : "Nearest"), 15, 65);
+            g.drawString("BALANCE: "+df.format(balance())+" %", 15, 80);
+            g.drawString("OVERLAP: "+df.format(presentOverlap)+" %", 15, 95);
+            g.drawString("OPEN: "+df.format(timeToFirstFrame)+" ms", 15, 110);
             g.dispose();
         }
     }
     
     /**
-     * Sample point on unit sphere from uv coordinates
-     * @param u Coordinate in the range [0,1]
-     * @param v Coordinate in the range [0,1]
-     * @param vec Point on the unit sphere
+     * Load balance of the workers: mean busy time relative to the maximum busy time.
+     * @return balance in percent, 100 when all the workers are equally busy
      */
-    private void sampleSphere(float u, float v, Vector3D vec){
-        float mu, mv, alpha, beta;
-        int u0, u1, v0, v1;
-        mu = -0.5f + u * sphereSamples;
-        u0 = (int)Math.floor(mu);
-        u1 = u0+1;
-        alpha = mu - u0;
-        u0 = u0 & (sphereSamples-1);
-        u1 = u1 & (sphereSamples-1);
-        
-        mv = v * (sphereSamples-1);
-        v0 = (int)Math.floor(mv);
-        v1 = v0+1;
-        beta = mv - v0;
-        v0 = MathUtils.clamp(v0, 0, sphereSamples-1);
-        v1 = MathUtils.clamp(v1, 0, sphereSamples-1);
-        
-        Vector3D vec00 = sphereVec[v0][u0];
-        Vector3D vec01 = sphereVec[v0][u1];
-        Vector3D vec10 = sphereVec[v1][u0];
-        Vector3D vec11 = sphereVec[v1][u1];
-        
-        float x0 = MathUtils.lerp(vec00.x, vec01.x, alpha);
-        float y0 = MathUtils.lerp(vec00.y, vec01.y, alpha);
-        float z0 = MathUtils.lerp(vec00.z, vec01.z, alpha);
-        
-        float x1 = MathUtils.lerp(vec10.x, vec11.x, alpha);
-        float y1 = MathUtils.lerp(vec10.y, vec11.y, alpha);
-        float z1 = MathUtils.lerp(vec10.z, vec11.z, alpha);
-        
-        vec.x = MathUtils.lerp(x0, x1, beta);
-        vec.y = MathUtils.lerp(y0, y1, beta);
-        vec.z = MathUtils.lerp(z0, z1, beta);
+    private float balance(){
+        float busy[] = busyTime;
+        float sum = 0.0f, max = 0.0f;
+        for(int i = 0; i < busy.length; i++){
+            sum += busy[i];
+            max = Math.max(max, busy[i]);
+        }
+        return max > 0.0f ? 100.0f * sum / (busy.length * max) : 100.0f;
     }
     
     /**
-     * Generates an image mapping the cubemap to a rentangular image
-     * @param cubemap Cubemap image
-     * @param showReference If the cubemap reference will be drawn on rendered image.
-     * @param refColor Color of cubemap reference
-     * @param lerp If linear interpolation will be used.
-     * @param width Width of rendered image
-     * @param height Height of rendered image
-     * @param pixelBuffer buffer of pixels
+     * Draw the cubemap unwrapped.
+     * The layout is drawn again only if the cubemap, the window size or the reference changed,
+     * otherwise the cached layout is copied.
      */
-    private static void drawEquirect(Cubemap cubemap, boolean showReference, int refColor, boolean lerp, int width, int height, float offset, int[] pixelBuffer) {
-
-        Vector3D dir = new Vector3D();
-        float u, v;
-        for(int i = 0; i < height; ++i) {
-            v = i/(float)(height-1);
-            for(int j = 0; j < width; ++j) {
-                u = (width-1-j+0.5f)/(float)width + offset;
-                dir.x = (float)(Math.cos(2.0*Math.PI*u)*Math.sin(Math.PI*v));
-                dir.y = (float)Math.cos(Math.PI*v);
-                dir.z = (float)(Math.sin(2.0*Math.PI*u)*Math.sin(Math.PI*v));
-                pixelBuffer[i*width+j] = showReference ? cubemap.sampleCubemapRef(dir, lerp, refColor) : cubemap.sampleCubemap(dir, lerp);
-            }
+    private void drawUnwrapped(){
+        if(unwrappedLayout == null || !unwrappedLayout.matches(cubemap, showReference, refColor, windowWidth, windowHeight)){
+            // Release the old layout before drawing the new one
+            unwrappedLayout = null;
+            unwrappedLayout = new UnwrappedLayout(cubemap, showReference, refColor, windowWidth, windowHeight, pool);
         }
-    }
-   
-    /**
-     * Draw the cubemap unwrapped.
-     * @param cubemap Cubemap image
-     * @param showReference If the cubemap reference will be drawn on rendered image.
-     * @param refColor Color of cubemap reference
-     * @param width Width of rendered image.
-     * @param height height Height of rendered image.
-     * @param outputImage Output Image
-     */
-    private static void drawUnwrapped(Cubemap cubemap, boolean showReference, int refColor, int width, int height, BufferedImage outputImage){
-        Graphics g = outputImage.createGraphics();
-        BufferedImage imageArray[] = cubemap.getImageArray();
-        g.setColor(Color.DARK_GRAY);
-        g.fillRect(0, 0, width, height);
-        int imageSize = 0;
-        if(width < height) {
-            imageSize = width/4;
-        } else {
-            imageSize = height/3;
-        }
-        imageSize = (int)(imageSize * 0.9f);
-        int hMargin = width -  4*imageSize;
-        int vMargin = height - 3*imageSize;
-        g.drawImage(imageArray[Cubemap.NEGX], hMargin/2              , vMargin/2 + imageSize    , imageSize, imageSize, null);
-        g.drawImage(imageArray[Cubemap.POSZ], hMargin/2 +   imageSize, vMargin/2 + imageSize    , imageSize, imageSize, null);
-        g.drawImage(imageArray[Cubemap.POSX], hMargin/2 + 2*imageSize, vMargin/2 + imageSize    , imageSize, imageSize, null);
-        g.drawImage(imageArray[Cubemap.NEGZ], hMargin/2 + 3*imageSize, vMargin/2 + imageSize    , imageSize, imageSize, null);
-        g.drawImage(imageArray[Cubemap.POSY], hMargin/2 + imageSize  , vMargin/2                , imageSize, imageSize, null);
-        g.drawImage(imageArray[Cubemap.NEGY], hMargin/2 + imageSize  , vMargin/2 + 2 * imageSize, imageSize, imageSize, null);
-        if(showReference) {
-            FontMetrics m = g.getFontMetrics();
-            Font f = new Font("Arial", Font.BOLD, 50);
-            g.setFont(f);
-            int tx, ty, txtWidth, txtHeight, txtAscent;
-            g.setColor(new Color(refColor));
-            // Draw negative x
-            txtWidth = m.stringWidth("-X");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("-X", tx, ty);
-            // Draw positive z
-            txtWidth = m.stringWidth("+Z");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + imageSize + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("+Z", tx, ty);
-            // Draw positive x
-            txtWidth = m.stringWidth("+X");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + 2 * imageSize + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("+X", tx, ty);
-            // Draw negative z
-            txtWidth = m.stringWidth("-Z");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + 3 * imageSize + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("-Z", tx, ty);
-            // Draw postive y
-            txtWidth = m.stringWidth("+Y");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + imageSize + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("+Y", tx, ty);
-            // Draw negative y
-            txtWidth = m.stringWidth("-Y");
-            txtHeight = m.getHeight();
-            txtAscent = m.getAscent();
-            tx = hMargin/2 + imageSize + imageSize / 2 - txtWidth / 2;
-            ty = vMargin/2 + 2 * imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
-            g.drawString("-Y", tx, ty);
-        }
-        g.dispose();
+        unwrappedLayout.copyTo(colorBuffer);
     }
     
     @Override
     public void run() {
         while (alive) {
             RenderParams newRP = null;
-            // Check for new parameters
+            // Wait for new parameters. All the changes posted since the last frame are taken at once.
+            // Refine the samples of the last progressive frame while there are no new parameters
+            boolean refining = !interactive && sampledStep > 1 || redraw;
             synchronized (rp) {
+                while(alive && rp.flags == 0 && !refining){
+                    try {
+                        rp.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
                 if(rp.flags != 0){
                     newRP = rp.copy();
                     rp.flags = 0;
+                    rp.openTime = 0L;
+                    rp.faces = 0;
+                    frameGeneration = generation;
                 }
             }
-            if (newRP != null) {
+            if (newRP != null || refining) {
+                if (newRP == null) {
+                    newRP = new RenderParams();
+                }
                 // Process the new parameters and update internal state
                 boolean updateProjection = false;
                 if((newRP.flags & RenderParams.RP_RENDER_TYPE) != 0) {
-                    renderType = rp.renderType;
+                    renderType = newRP.renderType;
                 }
                 if((newRP.flags & RenderParams.RP_CUBEMAP) != 0){
+                    if(newRP.cubemap != cubemap){
+                        if(cubemap != null){
+                            cubemap.removeFaceListener(faceListener);
+                        }
+                        if(newRP.cubemap != null){
+                            newRP.cubemap.addFaceListener(faceListener);
+                        }
+                    }
                     cubemap = newRP.cubemap;
+                    if(newRP.openTime != 0L){
+                        pendingOpenTime.set(newRP.openTime);
+                    }
+                    // The images may have changed even if it is the same cubemap
+                    unwrappedLayout = null;
+                }else if((newRP.flags & RenderParams.RP_FACES) != 0 && unwrappedLayout != null){
+                    // Only the faces loaded change in the cached layout
+                    unwrappedLayout.redrawFaces(newRP.faces, pool);
                 }
                 if ((newRP.flags & RenderParams.RP_WINDOW_SIZE) != 0 && (windowWidth != newRP.width || windowHeight != newRP.height)) {
                     windowWidth = newRP.width;
                     windowHeight = newRP.height;
-                    colorBufferImage = new BufferedImage(windowWidth, windowHeight, BufferedImage.TYPE_INT_RGB);
-                    WritableRaster wr = colorBufferImage.getRaster();
-                    DataBuffer db = wr.getDataBuffer();
-                    DataBufferInt dbi = (DataBufferInt) db;
-                    colorBuffer = dbi.getData();
                     updateProjection = true;
-                    int batch = windowHeight / avalaibleProcessors;
-                    if (avalaibleProcessors * batch < windowHeight) {
-                        batch++;
-                    }
-                    int startRow = 0, endRow;
-                    for (int i = 0; i < avalaibleProcessors; i++) {
-                        endRow = startRow + batch;
-                        processors[i].setRowRange(startRow, Math.min(endRow, windowHeight));
-                        startRow = endRow;
-                    }
                 }
                 if ((newRP.flags & RenderParams.RP_FOV) != 0 && fov != newRP.fov) {
                     fov = newRP.fov;
@@ -665,60 +1085,129 @@ public class CubemapRenderer extends Thread {
                 if((newRP.flags & RenderParams.RP_LERP) != 0){
                     lerp = newRP.lerp;
                 }
+                if((newRP.flags & RenderParams.RP_MIPMAP) != 0){
+                    mipmap = newRP.mipmap;
+                }
                 if((newRP.flags & RenderParams.RP_SHOW_INFO) != 0){
                     showInfo = newRP.showInfo;
                 }
                 if((newRP.flags & RenderParams.RP_EQUIRECT_OFFSET) != 0){
                     equiRectOffset = newRP.equiRectOffset;
                 }
+                if((newRP.flags & RenderParams.RP_EQUIRECT_ORIENTATION) != 0){
+                    equirectOrientation.assign(newRP.equirectOrientation);
+                }
+                if((newRP.flags & RenderParams.RP_TILE_SIZE) != 0){
+                    tileSize = newRP.tileSize;
+                }
+                if((newRP.flags & RenderParams.RP_FRAME_BUFFERS) != 0){
+                    frameRing.setCount(newRP.frameBuffers);
+                }
+                if((newRP.flags & RenderParams.RP_FRAME_PACING) != 0){
+                    frameRing.setLatestWins(newRP.framePacing == PACING_LATEST);
+                }
+                if((newRP.flags & RenderParams.RP_INTERACTIVE) != 0){
+                    interactive = newRP.interactive;
+                }
+                if((newRP.flags & RenderParams.RP_PROGRESSIVE_SCALE) != 0){
+                    progressiveScale = newRP.progressiveScale;
+                }
+                if((newRP.flags & RenderParams.RP_TARGET_FRAME_TIME) != 0){
+                    targetFrameTime = newRP.targetFrameTime;
+                    adaptFrames = 0;
+                    if(targetFrameTime <= 0.0f && resolutionScale != 1.0f){
+                        resolutionScale = 1.0f;
+                        updateProjection = true;
+                        redraw = true;
+                    }
+                }
                 if (updateProjection) {
                     calculateProjection();
                 }
-                if (colorBufferImage == null) {
-                    try {
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
+                if (windowWidth == 0 || windowHeight == 0) {
+                    // Nothing to draw until the render size is set
+                    continue;
+                }
+                if ((newRP.flags & RenderParams.RP_EQUIRECT_STRIP) != 0) {
+                    equirectStripValid = false;
+                }
+                boolean resample = (newRP.flags & ~RenderParams.RP_NO_RESAMPLE) != 0 || redraw;
+                redraw = false;
+                if (interactive && !resample) {
+                    // Interaction started, but the view did not change yet
+                    continue;
+                }
+                int stripShift = -1;
+                if (cubemap != null && renderType == RT_EQUIRECT) {
+                    // Pixel directions only change with the size and the view
+                    if (equirectRays == null || equirectRays.getWidth() != renderWidth || equirectRays.getHeight() != renderHeight) {
+                        equirectRays = new EquirectRays(renderWidth, renderHeight, equiRectOffset, equirectOrientation);
+                    } else {
+                        equirectRays = equirectRays.withView(equiRectOffset, equirectOrientation);
                     }
+                    // Frames shifted by whole pixels are copied
+                    if (equirectRays.isYawOnly()) {
+                        stripShift = pixelShift(equirectRays.getOffset(), renderWidth);
+                    }
+                }
+                if (cubemap != null && renderType == RT_PERSPECTIVE && cubemap.getLoadedFaces() != Cubemap.ALL_FACES) {
+                    // Load the faces of a lazy cubemap around the view before they are sampled
+                    cubemap.requestFaces(new FaceRasterizer(orientation, cameraRays).faceMask(PREFETCH_MARGIN));
+                }
+                // Select the grid of pixels to sample
+                boolean progressive = cubemap != null && (renderType == RT_PERSPECTIVE || renderType == RT_EQUIRECT) && stripShift < 0;
+                if (progressive && interactive && progressiveScale > 1) {
+                    // Coarse frame
+                    passStep = progressiveScale;
+                    passPrevStep = 0;
+                } else if (progressive && !resample && sampledStep > 1) {
+                    // Refine the last progressive frame
+                    passStep = sampledStep / 2;
+                    passPrevStep = sampledStep;
+                } else {
+                    // Full frame
+                    passStep = 1;
+                    passPrevStep = 0;
+                    progressive = false;
+                }
+                sampledStep = 0;
+                // Get a buffer not in use by the presenter
+                int frameIndex = frameRing.acquire(windowWidth, windowHeight);
+                if (frameIndex < 0) {
                     continue;
                 }
+                colorBufferImage = frameRing.getImage(frameIndex);
+                WritableRaster wr = colorBufferImage.getRaster();
+                DataBuffer db = wr.getDataBuffer();
+                DataBufferInt dbi = (DataBufferInt) db;
+                colorBuffer = dbi.getData();
+                // Frames drawn at a lower resolution are scaled to the color buffer
+                boolean tiled = cubemap != null && (renderType == RT_PERSPECTIVE || renderType == RT_EQUIRECT);
+                boolean scaled = tiled && (renderWidth != windowWidth || renderHeight != windowHeight);
+                int renderSize = renderWidth * renderHeight;
+                if (progressive && (sampleBuffer == null || sampleBuffer.length != renderSize)) {
+                    sampleBuffer = new int[renderSize];
+                }
+                if (scaled && (scaledBuffer == null || scaledBuffer.length != renderSize)) {
+                    scaledBuffer = new int[renderSize];
+                }
+                passBuffer = progressive ? sampleBuffer : (scaled ? scaledBuffer : colorBuffer);
                 // Draw image
+                long drawStart = System.nanoTime();
+                boolean completed = true;
                 if(cubemap != null){
                     switch(renderType) {
                         case RT_PERSPECTIVE:
-                            // Start render threads
-                            for (int i = 0; i < avalaibleProcessors; i++) {
-                                processors[i].setRenderType(CubemapRenderer.RT_PERSPECTIVE);
-                                processors[i].render = true;
-                            }
-                            // Wait for render threads to finish
-                            for (int i = 0; i < avalaibleProcessors; i++) {
-                                while (processors[i].render) {
-                                    try {
-                                        Thread.sleep(1);
-                                    } catch (InterruptedException e) {
-                                    }
-                                }
-                            }
-                            break;
                         case RT_EQUIRECT:
-                            //drawEquirectTest(cubemap, lerp, windowWidth, windowHeight, colorBuffer);
-                            // Start render threads
-                            for (int i = 0; i < avalaibleProcessors; i++) {
-                                processors[i].setRenderType(CubemapRenderer.RT_EQUIRECT);
-                                processors[i].render = true;
-                            }
-                            // Wait for render threads to finish
-                            for (int i = 0; i < avalaibleProcessors; i++) {
-                                while (processors[i].render) {
-                                    try {
-                                        Thread.sleep(1);
-                                    } catch (InterruptedException e) {
-                                    }
-                                }
+                            cancellable = cancelledInRow < MAX_CANCELLED_FRAMES;
+                            if (stripShift >= 0) {
+                                completed = drawShifted(stripShift);
+                            } else {
+                                completed = drawTiles(renderType);
                             }
                             break;
                         case RT_UNWRAPPED:
-                            drawUnwrapped(cubemap, showReference, refColor, windowWidth, windowHeight, colorBufferImage);
+                            drawUnwrapped();
                             break;
                     }
                 }else{
@@ -728,131 +1217,386 @@ public class CubemapRenderer extends Thread {
                     gi.fillRect(0, 0, windowWidth, windowHeight);
                     gi.dispose();
                 }
+                if (completed && scaled) {
+                    scaleToWindow(passBuffer);
+                }
                 // Update fps
-                fps();
+                long drawTime = System.nanoTime() - drawStart;
+                fps(drawTime, !completed);
+                if (!completed) {
+                    // Stale frame, draw the newest parameters
+                    cancelledInRow++;
+                    frameRing.release(frameIndex);
+                    redraw = true;
+                    continue;
+                }
+                cancelledInRow = 0;
+                if (progressive) {
+                    sampledStep = passStep;
+                    if (!scaled) {
+                        System.arraycopy(sampleBuffer, 0, colorBuffer, 0, colorBuffer.length);
+                    }
+                }
+                // Refinement frames sample only part of the pixels, they are not used for the resolution
+                if (tiled && passPrevStep == 0 && adaptResolution(drawTime * passStep * passStep) && sampledStep > 1) {
+                    // The samples of the coarse frame are for the previous resolution
+                    sampledStep = 0;
+                    redraw = true;
+                }
                 // Draw info over image
                 drawInfo(renderType);
-                // Write color buffer directly to graphics context. (Active Rendering).
+                // The presenter measures the time to the first frame of an opened cubemap
+                frameOpenTime[frameIndex] = cubemap != null ? pendingOpenTime.get() : 0L;
+                frameRing.queue(frameIndex);
+            }
+        }
+    }
+
+    /**
+     * Thread presenting the frames queued in the ring of buffers.
+     */
+    private class Presenter extends Thread {
+        
+        public Presenter(){
+            super("Cubemap Presenter");
+        }
+        
+        @Override
+        public void run(){
+            int index;
+            while((index = frameRing.take()) >= 0){
+                long start = System.nanoTime();
+                BufferedImage image = frameRing.getImage(index);
+                // Pass image to cubemap viewer. This is necessary to restore component content in the paintComponent callback.
+                // Returns when the previous image is no longer painted, then its buffer can be drawn again.
+                viewer.setOutputImage(image);
+                frameRing.display(index);
+                // Write image directly to graphics context. (Active Rendering).
                 Graphics gv = viewer.getGraphics();
                 if (gv != null) {
-                    gv.drawImage(colorBufferImage, 0, 0, null);
+                    gv.drawImage(image, 0, 0, null);
                     gv.dispose();
                 }
-                // Pass image to cubemap viewer. This is necessary to restore component content in the paintComponent callback.
-                viewer.setOutputImage(colorBufferImage);
-
-            } else {
-                try {
-                    Thread.sleep(5);
-                } catch (InterruptedException e) {
+                long now = System.nanoTime();
+                frameRing.presented(now - start);
+                long openTime = frameOpenTime[index];
+                if(openTime != 0L && pendingOpenTime.compareAndSet(openTime, 0L)){
+                    timeToFirstFrame = (now - openTime) / 1000000.0f;
                 }
             }
         }
     }
 
     /**
-     * Thread for drawing a part of the image.
+     * Scratch arrays for drawing rows of tiles. One instance per worker thread.
      */
-    class ImageProcessor extends Thread {
-
-        private int startRow, endRow;
-        private boolean alive, render;
-        private int renderType;
+    private static class RowScratch {
+        
+        private float dirX[] = new float[0], dirY[] = new float[0], dirZ[] = new float[0];
+        private int face[] = new int[0];
+        private float u[] = new float[0], v[] = new float[0], axis[] = new float[0];
+        private int color[] = new int[0];
         
         /**
-         * Creates a new Image Processor.
+         * Grow the arrays if necessary.
+         * @param length Minimum length of the arrays
          */
-        public ImageProcessor(){
-            super("Image Processor");
-            alive = true;
-            renderType = CubemapRenderer.RT_PERSPECTIVE;
+        public void ensureCapacity(int length){
+            if (dirX.length < length) {
+                dirX = new float[length];
+                dirY = new float[length];
+                dirZ = new float[length];
+                face = new int[length];
+                u = new float[length];
+                v = new float[length];
+                axis = new float[length];
+                color = new int[length];
+            }
         }
+    }
+    
+    private static final ThreadLocal<RowScratch> ROW_SCRATCH = new ThreadLocal<RowScratch>(){
+        @Override
+        protected RowScratch initialValue(){
+            return new RowScratch();
+        }
+    };
+    
+    /**
+     * Task of a worker: draws tiles until there are no more tiles left.
+     */
+    private class TileWorker extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private final int index;
+        private final int renderType;
+        private final AtomicInteger nextTile;
         
         /**
-         * Specify the row range.
-         * @param startRow Start row.
-         * @param endRow End row. Not inclusive.
+         * Creates a new tile worker.
+         * @param index Index of worker, for the busy time.
+         * @param renderType Render type: RT_PERSPECTIVE or RT_EQUIRECT.
+         * @param nextTile Index of the next tile to draw, shared by all the workers.
          */
-        public void setRowRange(int startRow, int endRow){
-            this.startRow = startRow;
-            this.endRow = endRow;
+        public TileWorker(int index, int renderType, AtomicInteger nextTile){
+            this.index = index;
+            this.renderType = renderType;
+            this.nextTile = nextTile;
         }
         
-        public void setRenderType(int renderType){
-            this.renderType = renderType;
+        @Override
+        protected void compute(){
+            long start = System.nanoTime();
+            int tilesX = (renderWidth + tileSize - 1) / tileSize;
+            int tilesY = (renderHeight + tileSize - 1) / tileSize;
+            int tileCount = tilesX * tilesY;
+            RowScratch scratch = ROW_SCRATCH.get();
+            scratch.ensureCapacity(tileSize);
+            FaceRasterizer rasterizer = renderType == RT_PERSPECTIVE ? new FaceRasterizer(orientation, cameraRays) : null;
+            int tile;
+            while(!isStale() && (tile = nextTile.getAndIncrement()) < tileCount){
+                int startX = (tile % tilesX) * tileSize;
+                int startY = (tile / tilesX) * tileSize;
+                drawTile(renderType, rasterizer, scratch, startX, Math.min(startX + tileSize, renderWidth), startY, Math.min(startY + tileSize, renderHeight));
+            }
+            busyTimeSum[index] += System.nanoTime() - start;
+        }
+    }
+    
+    /**
+     * Task of a worker: scales bands of rows to the color buffer until there are no more bands left.
+     */
+    private class ScaleWorker extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private final int index;
+        private final ImageScaler imageScaler;
+        private final int src[], dst[];
+        private final AtomicInteger nextBand;
+        
+        /**
+         * Creates a new scale worker.
+         * @param index Index of worker, for the busy time.
+         * @param imageScaler Scaler from the render size to the window size.
+         * @param src Pixels of the frame.
+         * @param dst Color buffer.
+         * @param nextBand Index of the next band to scale, shared by all the workers.
+         */
+        public ScaleWorker(int index, ImageScaler imageScaler, int src[], int dst[], AtomicInteger nextBand){
+            this.index = index;
+            this.imageScaler = imageScaler;
+            this.src = src;
+            this.dst = dst;
+            this.nextBand = nextBand;
         }
         
         @Override
-        public void run() {
-            while (alive) {
-                if (render) {
-                    if(renderType == CubemapRenderer.RT_PERSPECTIVE){                    
-                        int width = colorBufferImage.getWidth();
-                        int height = colorBufferImage.getHeight();
-                        Vector3D inDir = new Vector3D();
-                        Vector2D nc = new Vector2D();
-                        inDir.z = projDistance;
-                        Vector3D outDir = new Vector3D();
-                        float oneOverWidth = 1.0f / width, oneOverHeight = 1.0f / height;
-                        if (!showReference) {
-                            for (int y = startRow; y < endRow; ++y) {
-                                nc.y = ((height - 1 - y) + 0.5f) * oneOverHeight;
-                                inDir.y = windowBottom + yRange * nc.y;
-                                for (int x = 0; x < width; ++x) {
-                                    nc.x = (x + 0.5f) * oneOverWidth;
-                                    inDir.x = windowLeft + xRange * nc.x;
-                                    orientation.mult(inDir, outDir);
-                                    colorBuffer[y * width + x] = cubemap.sampleCubemap(outDir, lerp);
-                                }
-                            }
-                        } else {
-                            for (int y = startRow; y < endRow; ++y) {
-                                nc.y = ((height - 1 - y) + 0.5f) * oneOverHeight;
-                                inDir.y = windowBottom + yRange * nc.y;
-                                for (int x = 0; x < width; ++x) {
-                                    nc.x = (x + 0.5f) * oneOverWidth;
-                                    inDir.x = windowLeft + xRange * nc.x;
-                                    orientation.mult(inDir, outDir);
-                                    colorBuffer[y * width + x] = cubemap.sampleCubemapRef(outDir, lerp, refColor);
-                                }
-                            }
-                        }
-                    } else if (renderType == CubemapRenderer.RT_EQUIRECT) {
-                        int width = colorBufferImage.getWidth();
-                        int height = colorBufferImage.getHeight();
-                        Vector3D dir = new Vector3D();
-                        float u, v;
-                        if (!showReference) {
-                            for (int y = startRow; y < endRow; ++y) {
-                                v = (y+0.5f) /(float)height;
-                                for (int x = 0; x < width; ++x) {
-                                    u = (x+0.5f)/(float)width + equiRectOffset;
-                                    sampleSphere(u, v, dir);
-                                    colorBuffer[y*width+x] = cubemap.sampleCubemap(dir, lerp);
-                                }
-                            }
-                        }else{
-                            for (int y = startRow; y < endRow; ++y) {
-                                v = (y+0.5f) /(float)height;
-                                for (int x = 0; x < width; ++x) {
-                                    u = (x+0.5f)/(float)width + equiRectOffset;
-                                    sampleSphere(u, v, dir);
-                                    colorBuffer[y*width+x] = cubemap.sampleCubemapRef(dir, lerp, refColor);
-                                }
-                            }
-                        }
-                    }
-                    render = false;
-                }else{
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException ex) {
+        protected void compute(){
+            long start = System.nanoTime();
+            int height = imageScaler.getDstHeight();
+            int bandCount = (height + tileSize - 1) / tileSize;
+            int band;
+            while((band = nextBand.getAndIncrement()) < bandCount){
+                int startRow = band * tileSize;
+                imageScaler.scale(src, dst, startRow, Math.min(startRow + tileSize, height));
+            }
+            busyTimeSum[index] += System.nanoTime() - start;
+        }
+    }
+    
+    /**
+     * Checks if the frame being drawn can be cancelled and newer parameters were set.
+     * @return true if the remaining tiles should not be drawn.
+     */
+    private boolean isStale(){
+        return cancellable && generation != frameGeneration;
+    }
+    
+    /**
+     * Draw the color buffer in parallel. Returns when all the tiles are done, or the frame is stale.
+     * @param renderType Render type: RT_PERSPECTIVE or RT_EQUIRECT.
+     * @return true if all the tiles were drawn, false if the frame was cancelled.
+     */
+    private boolean drawTiles(int renderType){
+        AtomicInteger nextTile = new AtomicInteger();
+        TileWorker workers[] = new TileWorker[availableProcessors];
+        for(int i = 0; i < availableProcessors; i++){
+            workers[i] = new TileWorker(i, renderType, nextTile);
+        }
+        invokeWorkers(workers);
+        return !isStale();
+    }
+    
+    /**
+     * Run the workers of a frame in the pool and wait for them.
+     * @param workers Workers, one per thread of the pool.
+     */
+    private void invokeWorkers(final RecursiveAction workers[]){
+        pool.invoke(new RecursiveAction(){
+            @Override
+            protected void compute(){
+                invokeAll(workers);
+            }
+        });
+    }
+    
+    /**
+     * Get the horizontal shift of an equirectangular frame in pixels, if it is a whole number of pixels.
+     * @param offset Horizontal offset, one is a full turn.
+     * @param width Width of frame.
+     * @return Shift in range [0, width), or -1 if the offset is between two pixels.
+     */
+    private static int pixelShift(float offset, int width){
+        double shift = (double) offset * width;
+        double rounded = Math.rint(shift);
+        // Less than a hundredth of a pixel is not visible, and absorbs the rounding of the offset
+        if (Math.abs(shift - rounded) > 0.01) {
+            return -1;
+        }
+        int value = (int) (((long) rounded) % width);
+        return value < 0 ? value + width : value;
+    }
+    
+    /**
+     * Draw an equirectangular frame by shifting the frame with offset zero, drawing it first if not cached.
+     * Pixel x of the frame is pixel (x + shift) mod width of the frame with offset zero.
+     * @param shift Shift in pixels.
+     * @return true if the frame was drawn, false if drawing the frame with offset zero was cancelled.
+     */
+    private boolean drawShifted(int shift){
+        int width = renderWidth, height = renderHeight;
+        int dst[] = passBuffer;
+        if (!equirectStripValid || equirectStripWidth != width || equirectStrip.length != width * height) {
+            if (equirectStrip == null || equirectStrip.length != width * height) {
+                equirectStrip = new int[width * height];
+            }
+            equirectStripWidth = width;
+            equirectRays = equirectRays.withOffset(0.0f);
+            passBuffer = equirectStrip;
+            boolean completed = drawTiles(RT_EQUIRECT);
+            passBuffer = dst;
+            if (!completed) {
+                return false;
+            }
+            equirectStripValid = true;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            System.arraycopy(equirectStrip, row + shift, dst, row, width - shift);
+            System.arraycopy(equirectStrip, row, dst, row + width - shift, shift);
+        }
+        return true;
+    }
+    
+    /**
+     * Scale a frame drawn at the render size to the color buffer, in parallel.
+     * The workers take bands of tile size rows from a shared counter, like the tiles of a frame.
+     * @param src Pixels of the frame.
+     */
+    private void scaleToWindow(int src[]){
+        if (scaler == null || scaler.getSrcWidth() != renderWidth || scaler.getSrcHeight() != renderHeight
+                || scaler.getDstWidth() != windowWidth || scaler.getDstHeight() != windowHeight) {
+            scaler = new ImageScaler(renderWidth, renderHeight, windowWidth, windowHeight);
+        }
+        AtomicInteger nextBand = new AtomicInteger();
+        ScaleWorker workers[] = new ScaleWorker[availableProcessors];
+        for (int i = 0; i < availableProcessors; i++) {
+            workers[i] = new ScaleWorker(i, scaler, src, colorBuffer, nextBand);
+        }
+        invokeWorkers(workers);
+    }
+    
+    /**
+     * Draw a tile of the color buffer.
+     * Samples the pixels on the grid of the current pass, skipping the pixels of the previous pass,
+     * and fills the block of each sampled pixel.
+     * @param renderType Render type: RT_PERSPECTIVE or RT_EQUIRECT.
+     * @param rasterizer Rasterizer for perspective projection.
+     * @param scratch Scratch arrays of the current thread.
+     * @param startX Start column.
+     * @param endX End column. Not inclusive.
+     * @param startRow Start row.
+     * @param endRow End row. Not inclusive.
+     */
+    private void drawTile(int renderType, FaceRasterizer rasterizer, RowScratch scratch, int startX, int endX, int startRow, int endRow){
+        int width = renderWidth;
+        int step = passStep, prevStep = passPrevStep;
+        int out[] = passBuffer;
+        int filter = getFilter(lerp, mipmap);
+        // First row and column of the grid inside the tile
+        int firstX = (startX + step - 1) / step * step;
+        int firstY = (startRow + step - 1) / step * step;
+        float dirX[] = scratch.dirX, dirY[] = scratch.dirY, dirZ[] = scratch.dirZ;
+        for (int y = firstY; y < endRow; y += step) {
+            int x0 = firstX, xStep = step;
+            if (prevStep > 0 && y % prevStep == 0) {
+                // Row of the previous grid: only the columns between its pixels
+                x0 = firstX % prevStep == 0 ? firstX + step : firstX;
+                xStep = prevStep;
+            }
+            if (x0 >= endX) {
+                continue;
+            }
+            int length = (endX - x0 + xStep - 1) / xStep;
+            // Write directly to the output when every pixel of the row is sampled
+            boolean direct = xStep == 1;
+            int dst[] = direct ? out : scratch.color;
+            int off = direct ? y * width + x0 : 0;
+            if(renderType == CubemapRenderer.RT_PERSPECTIVE){
+                rasterizer.rasterizeRow(y, x0, x0 + (length - 1) * xStep + 1, scratch.face, scratch.u, scratch.v, scratch.axis);
+                if (!direct) {
+                    for (int i = 1; i < length; i++) {
+                        int src = i * xStep;
+                        scratch.face[i] = scratch.face[src];
+                        scratch.u[i] = scratch.u[src];
+                        scratch.v[i] = scratch.v[src];
+                        scratch.axis[i] = scratch.axis[src];
                     }
                 }
+                cubemap.sampleProjected(scratch.face, scratch.u, scratch.v, scratch.axis, dst, off, length, filter, cameraRays.getFootprint(), showReference, refColor);
+            } else if (renderType == CubemapRenderer.RT_EQUIRECT) {
+                equirectRays.getRow(y, x0, xStep, length, dirX, dirY, dirZ);
+                float footprint = equirectRays.getFootprint(y);
+                if (showReference) {
+                    cubemap.sampleCubemapRef(dirX, dirY, dirZ, dst, off, length, filter, footprint, refColor);
+                } else {
+                    cubemap.sampleCubemap(dirX, dirY, dirZ, dst, off, length, filter, footprint);
+                }
+            }
+            if (!direct) {
+                fillBlocks(dst, off, length, x0, xStep, y, step, out);
             }
         }
     }
-
+    
+    /**
+     * Fill the blocks of sampled pixels of a row. The block of a pixel is the square of the grid
+     * with the pixel at its top left corner.
+     * @param colors Sampled colors.
+     * @param off Offset in colors.
+     * @param length Number of sampled pixels.
+     * @param x0 Column of the first pixel.
+     * @param xStep Columns between pixels.
+     * @param y Row of the pixels.
+     * @param step Size of blocks.
+     * @param out Output pixels.
+     */
+    private void fillBlocks(int colors[], int off, int length, int x0, int xStep, int y, int step, int out[]){
+        int width = renderWidth;
+        int endY = Math.min(y + step, renderHeight);
+        for (int i = 0; i < length; i++) {
+            int color = colors[off + i];
+            int x = x0 + i * xStep;
+            int endX = Math.min(x + step, width);
+            for (int by = y; by < endY; by++) {
+                int row = by * width;
+                for (int bx = x; bx < endX; bx++) {
+                    out[row + bx] = color;
+                }
+            }
+        }
+    }
+    
     /**
      * Render an image from given parameters.
      * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
@@ -864,68 +1608,12 @@ public class CubemapRenderer extends Thread {
      * @param lerp If linear interpolation will be used.
      * @param width Width of rendered image.
      * @param height Height of rendered image.
-     * @return rendered image 
+     * @return rendered image
+     * @deprecated Use {@link ImageRenderer#render(Cubemap, Matrix33, float, boolean, int, boolean, int, int)}.
      */
+    @Deprecated
     public static final BufferedImage render(Cubemap cubemap, Matrix33 orientation, float fov, boolean showReference, int refColor, boolean lerp, int width, int height){
-        if(cubemap == null){
-            throw new NullPointerException();
-        }
-        if(width <= 0 || height <= 0){
-            throw new IllegalArgumentException("Invalid window size");
-        }
-        if(orientation == null){
-            throw new NullPointerException();
-        }
-        if(fov <= 2.0f || fov >= 175.0f){
-            throw new IllegalArgumentException("Invalid fov");
-        }
-        float windowLeft, windowRight, xRange;
-        float windowBottom, windowTop, yRange;
-        float projDistance = 5.0f;
-        // Calculate projection
-        float aspectRatio = (float)width / (float)height;
-        windowRight = (float) (projDistance * Math.tan(Math.toRadians(fov) / 2.0));
-        windowLeft = -windowRight;
-        xRange = windowRight * 2.0f;
-        windowTop = windowRight / aspectRatio;
-        windowBottom = -windowTop;
-        yRange = windowTop * 2.0f;
-        // Allocate image
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        WritableRaster wr = outputImage.getRaster();
-        DataBuffer db = wr.getDataBuffer();
-        DataBufferInt dbi = (DataBufferInt) db;
-        int buffer[] = dbi.getData();
-        //Render
-        Vector3D inDir = new Vector3D();
-        Vector2D nc = new Vector2D();
-        inDir.z = projDistance;
-        Vector3D outDir = new Vector3D();
-        float oneOverWidth = 1.0f / width, oneOverHeight = 1.0f / height;
-        if (!showReference) {
-            for (int y = 0; y < height; ++y) {
-                nc.y = ((height - 1 - y) + 0.5f) * oneOverHeight;
-                inDir.y = windowBottom + yRange * nc.y;
-                for (int x = 0; x < width; ++x) {
-                    nc.x = (x + 0.5f) * oneOverWidth;
-                    inDir.x = windowLeft + xRange * nc.x;
-                    orientation.mult(inDir, outDir);
-                    buffer[y * width + x] = cubemap.sampleCubemap(outDir, lerp);
-                }
-            }
-        } else {
-            for (int y = 0; y < height; ++y) {
-                nc.y = ((height - 1 - y) + 0.5f) * oneOverHeight;
-                inDir.y = windowBottom + yRange * nc.y;
-                for (int x = 0; x < width; ++x) {
-                    nc.x = (x + 0.5f) * oneOverWidth;
-                    inDir.x = windowLeft + xRange * nc.x;
-                    orientation.mult(inDir, outDir);
-                    buffer[y * width + x] = cubemap.sampleCubemapRef(outDir, lerp, refColor);
-                }
-            }
-        }
-        return outputImage;
+        return ImageRenderer.render(cubemap, orientation, fov, showReference, refColor, lerp, width, height);
     }
     
     /**
@@ -937,20 +1625,13 @@ public class CubemapRenderer extends Thread {
      * @param width Width of rendered image.
      * @param height Height of rendered image.
      * @return rendered image
+     * @deprecated Use {@link ImageRenderer#renderUnWrapped(Cubemap, boolean, int, int, int)}.
      */
+    @Deprecated
     public static BufferedImage renderUnWrapped(Cubemap cubemap, boolean showReference, int refColor, int width, int height) {
-        if(cubemap == null){
-            throw new NullPointerException();
-        }
-        if(width <= 0 || height <= 0){
-            throw new IllegalArgumentException("Invalid window size");
-        }
-        // Allocate image
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        drawUnwrapped(cubemap, showReference, refColor, width, height, outputImage);
-        return outputImage;
+        return ImageRenderer.renderUnWrapped(cubemap, showReference, refColor, width, height);
     }
-
+    
     /**
      * Renders an equirectangular image.
      * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
@@ -960,23 +1641,13 @@ public class CubemapRenderer extends Thread {
      * @param lerp If linear interpolation will be used.
      * @param width Width of rendered image.
      * @param height Height of rendered image.
-     * @return 
+     * @param offset Horizontal offset, one is a full turn.
+     * @return rendered image
+     * @deprecated Use {@link ImageRenderer#renderEquirect(Cubemap, boolean, int, boolean, int, int, float)}.
      */
+    @Deprecated
     public static BufferedImage renderEquirect(Cubemap cubemap, boolean showReference, int refColor, boolean lerp, int width, int height, float offset) {
-        if(cubemap == null){
-            throw new NullPointerException();
-        }
-        if(width <= 0 || height <= 0){
-            throw new IllegalArgumentException("Invalid window size");
-        }
-        // Allocate image
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        WritableRaster wr = outputImage.getRaster();
-        DataBuffer db = wr.getDataBuffer();
-        DataBufferInt dbi = (DataBufferInt) db;
-        int buffer[] = dbi.getData();
-        drawEquirect(cubemap, showReference, refColor, lerp, width, height, offset, buffer);
-        return outputImage;
+        return ImageRenderer.renderEquirect(cubemap, showReference, refColor, lerp, width, height, offset);
     }
     
 }
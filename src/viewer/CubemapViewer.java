@@ -21,6 +21,8 @@ public class CubemapViewer extends JComponent {
 
     private CubemapRenderer cubemapRenderer;
     private BufferedImage outputImage;
+    // Held while painting the output image, so it is not replaced in the middle
+    private final Object outputLock = new Object();
     private float angleX = 0.0f, angleY = 0.0f;
     private CameraAdapter cameraAdapter;
     private boolean invertMouse;
@@ -106,6 +108,7 @@ public class CubemapViewer extends JComponent {
                 cubemapRenderer.setOrientation(Matrix33.identity());
             }else if(renderType == CubemapRenderer.RT_EQUIRECT){
                 cubemapRenderer.setEquirectOffset(0);
+                cubemapRenderer.setEquirectOrientation(Matrix33.identity());
             }
         }
     }
@@ -132,12 +135,26 @@ public class CubemapViewer extends JComponent {
         }
     }
 
+    /**
+     * Set new cubemap to be visualized, tracking the time to its first frame.
+     * @param cubemap Cubemap image
+     * @param openTime Time the cubemap started opening, from System.nanoTime().
+     */
+    public void setCubemap(Cubemap cubemap, long openTime){
+        if(cubemapRenderer != null){
+            cubemapRenderer.setCubemap(cubemap, openTime);
+        }
+    }
+
     /**
      * Set reference to rendered image. Only used by Cubemap Renderer.
+     * Waits until the previous image is painted, then the renderer can draw on it again.
      * @param outputImage Rendered image.
      */
     public void setOutputImage(BufferedImage outputImage){
-        this.outputImage = outputImage;
+        synchronized(outputLock){
+            this.outputImage = outputImage;
+        }
     }
     
     /**
@@ -147,13 +164,14 @@ public class CubemapViewer extends JComponent {
      */
     @Override
     public void paintComponent(Graphics g) {
-        if (outputImage == null) {
-            g.setColor(Color.BLACK);
-            g.fillRect(0, 0, getWidth(), getHeight());
-        } else {
-            g.drawImage(outputImage, 0, 0, null);
+        synchronized(outputLock){
+            if (outputImage == null) {
+                g.setColor(Color.BLACK);
+                g.fillRect(0, 0, getWidth(), getHeight());
+            } else {
+                g.drawImage(outputImage, 0, 0, null);
+            }
         }
-        
     }
 
     /**
@@ -172,8 +190,8 @@ public class CubemapViewer extends JComponent {
             }
             startX = e.getX();
             startY = e.getY();
-            //Disable lerp before start mouse dragging.
-            cubemapRenderer.setLerp(false);
+            //Draw progressive frames while dragging.
+            cubemapRenderer.setInteractive(true);
             renderType = cubemapRenderer.getRenderType();
         }
 
@@ -209,8 +227,8 @@ public class CubemapViewer extends JComponent {
             if(cubemapRenderer == null){
                 return;
             }
-            //Restore lerp on mouse release.
-            cubemapRenderer.setLerp(true);
+            //Refine to full resolution on mouse release.
+            cubemapRenderer.setInteractive(false);
         }
 
         @Override
@@ -0,0 +1,224 @@
+package viewer;
+
+import math.Matrix33;
+
+/**
+ * Directions of the pixels of an equirectangular image.
+ * Row y has polar angle theta = PI * (y + 0.5) / height, column x has azimuth
+ * phi = -2 * PI * ((x + 0.5) / width + offset), and the direction of a pixel is
+ * (cos(phi) * sin(theta), cos(theta), sin(phi) * sin(theta)). Both angles are separable, so the table
+ * stores the sines and cosines of each row and column, and a direction is two multiplies.
+ * The row tables and the column angles depend only on the image size. A new offset only rotates the columns,
+ * see {@link #withOffset(float)}.
+ * An orientation matrix rotates the directions. A rotation around the Y axis (yaw) is the same as an offset,
+ * so it is added to the offset and costs nothing. Other orientations rotate each direction.
+ * @author edu
+ */
+final class EquirectRays {
+
+    private final int width, height;
+    private final float offset;
+    // Orientation, null if there is no rotation besides the offset
+    private final Matrix33 orientation;
+    private final float rowSin[], rowCos[];
+    private final float rowFootprint[];
+    // Cosine and sine of the azimuth of each column without offset
+    private final double columnCos[], columnSin[];
+    // X and Z coordinates of the directions of each column on the equator, with offset
+    private final float columnX[], columnZ[];
+
+    /**
+     * Creates the directions of an equirectangular image.
+     * @param width Width of image.
+     * @param height Height of image.
+     * @param offset Horizontal offset, one is a full turn.
+     */
+    public EquirectRays(int width, int height, float offset){
+        this(width, height, offset, null);
+    }
+
+    /**
+     * Creates the directions of an equirectangular image with an orientation.
+     * @param width Width of image.
+     * @param height Height of image.
+     * @param offset Horizontal offset, one is a full turn.
+     * @param orientation Orientation matrix, applied after the offset. Null for identity.
+     */
+    public EquirectRays(int width, int height, float offset, Matrix33 orientation){
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.width = width;
+        this.height = height;
+        rowSin = new float[height];
+        rowCos = new float[height];
+        rowFootprint = new float[height];
+        // Solid angle of a pixel at the equator
+        float pixelAngle = (float) (2.0 * Math.PI * Math.PI) / (width * height);
+        for(int y = 0; y < height; y++){
+            double theta = Math.PI * (y + 0.5) / height;
+            rowSin[y] = (float) Math.sin(theta);
+            rowCos[y] = (float) Math.cos(theta);
+            rowFootprint[y] = pixelAngle * rowSin[y];
+        }
+        columnCos = new double[width];
+        columnSin = new double[width];
+        for(int x = 0; x < width; x++){
+            double phi = -2.0 * Math.PI * (x + 0.5) / width;
+            columnCos[x] = Math.cos(phi);
+            columnSin[x] = Math.sin(phi);
+        }
+        float yaw = yawOffset(orientation);
+        this.offset = Float.isNaN(yaw) ? offset : offset + yaw;
+        this.orientation = Float.isNaN(yaw) ? new Matrix33(orientation, false) : null;
+        columnX = new float[width];
+        columnZ = new float[width];
+        rotateColumns();
+    }
+
+    /**
+     * Creates the directions with another view, sharing the tables of the same size.
+     */
+    private EquirectRays(EquirectRays rays, float offset, Matrix33 orientation){
+        width = rays.width;
+        height = rays.height;
+        rowSin = rays.rowSin;
+        rowCos = rays.rowCos;
+        rowFootprint = rays.rowFootprint;
+        columnCos = rays.columnCos;
+        columnSin = rays.columnSin;
+        this.offset = offset;
+        this.orientation = orientation;
+        columnX = new float[width];
+        columnZ = new float[width];
+        rotateColumns();
+    }
+
+    /**
+     * Rotate the azimuth of the columns by the offset.
+     */
+    private void rotateColumns(){
+        double angle = -2.0 * Math.PI * offset;
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        for(int x = 0; x < width; x++){
+            columnX[x] = (float) (columnCos[x] * cos - columnSin[x] * sin);
+            columnZ[x] = (float) (columnSin[x] * cos + columnCos[x] * sin);
+        }
+    }
+
+    /**
+     * Get offset equivalent to an orientation.
+     * @param orientation Orientation matrix, or null.
+     * @return Offset of the rotation around the Y axis, or NaN if the orientation also has pitch or roll.
+     */
+    static float yawOffset(Matrix33 orientation){
+        if(orientation == null){
+            return 0.0f;
+        }
+        float epsilon = 1.0e-6f;
+        if(Math.abs(orientation.m01) > epsilon || Math.abs(orientation.m10) > epsilon
+                || Math.abs(orientation.m12) > epsilon || Math.abs(orientation.m21) > epsilon || orientation.m11 < 1.0f - epsilon){
+            return Float.NaN;
+        }
+        // Rotating by the yaw decreases the azimuth by the same angle
+        return (float) (Math.atan2(orientation.m02, orientation.m00) / (2.0 * Math.PI));
+    }
+
+    /**
+     * Get directions with another horizontal offset and no orientation. Only the columns are computed again.
+     * @param offset Horizontal offset, one is a full turn.
+     * @return Directions, this object if the view is the same.
+     */
+    public EquirectRays withOffset(float offset){
+        return offset == this.offset && orientation == null ? this : new EquirectRays(this, offset, null);
+    }
+
+    /**
+     * Get directions with another view. Only the columns are computed again.
+     * @param offset Horizontal offset, one is a full turn.
+     * @param orientation Orientation matrix, applied after the offset. Null for identity.
+     * @return Directions.
+     */
+    public EquirectRays withView(float offset, Matrix33 orientation){
+        float yaw = yawOffset(orientation);
+        if(Float.isNaN(yaw)){
+            return new EquirectRays(this, offset, new Matrix33(orientation, false));
+        }
+        return withOffset(offset + yaw);
+    }
+
+    /**
+     * Checks if the orientation is only a rotation around the Y axis. Then the offset includes it,
+     * and changing the offset by whole pixels shifts the columns of the image.
+     * @return true if there is no pitch or roll.
+     */
+    public boolean isYawOnly(){
+        return orientation == null;
+    }
+
+    /**
+     * Get horizontal offset, including the yaw of the orientation.
+     * @return offset
+     */
+    public float getOffset(){
+        return offset;
+    }
+
+    /**
+     * Get width of image.
+     * @return width
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * Get height of image.
+     * @return height
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * Get footprint of the pixels of a row for the level of detail: the solid angle of a pixel.
+     * @param y Row, zero at the top of the image.
+     * @return footprint
+     */
+    public float getFootprint(int y){
+        return rowFootprint[y];
+    }
+
+    /**
+     * Get directions of pixels of a row.
+     * @param y Row, zero at the top of the image.
+     * @param startX First column.
+     * @param stepX Columns between pixels.
+     * @param length Number of pixels.
+     * @param dirX Output X components, written at index [0, length).
+     * @param dirY Output Y components.
+     * @param dirZ Output Z components.
+     */
+    public void getRow(int y, int startX, int stepX, int length, float dirX[], float dirY[], float dirZ[]){
+        float sin = rowSin[y], cos = rowCos[y];
+        if(orientation == null){
+            for(int i = 0, x = startX; i < length; i++, x += stepX){
+                dirX[i] = columnX[x] * sin;
+                dirY[i] = cos;
+                dirZ[i] = columnZ[x] * sin;
+            }
+            return;
+        }
+        Matrix33 m = orientation;
+        // The Y component is the same for the whole row
+        float yX = m.m01 * cos, yY = m.m11 * cos, yZ = m.m21 * cos;
+        for(int i = 0, x = startX; i < length; i++, x += stepX){
+            float dx = columnX[x] * sin;
+            float dz = columnZ[x] * sin;
+            dirX[i] = m.m00 * dx + m.m02 * dz + yX;
+            dirY[i] = m.m10 * dx + m.m12 * dz + yY;
+            dirZ[i] = m.m20 * dx + m.m22 * dz + yZ;
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package viewer;
+
+import math.Matrix33;
+
+/**
+ * Scanline rasterizer of the cubemap faces for perspective projection.
+ * Seen from the camera, each face of the cube is a quad mapped with a perspective projection.
+ * Each row of the image crosses the regions of the faces in spans. The rasterizer clips the row
+ * against the planes that bound the regions (x = y, x = -y, x = z, x = -z, y = z, y = -z and the planes of each axis),
+ * and selects the face once per span instead of once per pixel.
+ * The output is the input of the batch samplers: face, U, V and major axis for each pixel. It is the same as
+ * the projection of each ray of {@link CameraRays} with {@link SampleKernel#project}: the rays are rotated and
+ * projected on the face with the same arithmetic.
+ * @author edu
+ */
+final class FaceRasterizer {
+
+    // Number of planes bounding the regions of the faces
+    private static final int PLANES = 9;
+    // Cells of each side of the grid of rays of faceMask
+    private static final int FACE_GRID = 8;
+
+    private final CameraRays rays;
+    private final Matrix33 orientation;
+    private final int width;
+    // Rotated rays: direction of the first pixel of a row with rowY = 0, step per pixel and per unit of rowY
+    private final float originX, originY, originZ;
+    private final float stepX, stepY, stepZ;
+    private final float upX, upY, upZ;
+    // Rotated projection distance, the Z coordinate of the rays
+    private final float distX, distY, distZ;
+    // Rotated Y coordinate of the rays of the row being rasterized
+    private float rowX, rowY, rowZ;
+    private final int breaks[] = new int[PLANES];
+
+    /**
+     * Creates a rasterizer for a perspective camera.
+     * Only the start and step of the camera rays are rotated, so the cost does not depend on the image size.
+     * @param orientation Orientation matrix.
+     * @param rays Camera space rays.
+     */
+    public FaceRasterizer(Matrix33 orientation, CameraRays rays){
+        this.rays = rays;
+        this.orientation = orientation;
+        width = rays.getWidth();
+        float inX = rays.getFirstX();
+        float projDistance = rays.getProjDistance();
+        originX = orientation.m00 * inX + orientation.m02 * projDistance;
+        originY = orientation.m10 * inX + orientation.m12 * projDistance;
+        originZ = orientation.m20 * inX + orientation.m22 * projDistance;
+        float pixelWidth = rays.getStepX();
+        stepX = orientation.m00 * pixelWidth;
+        stepY = orientation.m10 * pixelWidth;
+        stepZ = orientation.m20 * pixelWidth;
+        upX = orientation.m01;
+        upY = orientation.m11;
+        upZ = orientation.m21;
+        distX = orientation.m02 * projDistance;
+        distY = orientation.m12 * projDistance;
+        distZ = orientation.m22 * projDistance;
+    }
+
+    /**
+     * Get the faces seen through a window around the image, to load the faces of a lazy cubemap ahead of time.
+     * Selects the face of a grid of rays, so a face seen only between the rays of the grid can be missed.
+     * @param margin Size of the window relative to the image, 1 for the image itself.
+     * @return Mask of faces, bit (1 << face) for each face.
+     */
+    public int faceMask(float margin){
+        float top = rays.getRowY(0);
+        float bottom = rays.getRowY(rays.getHeight() - 1);
+        float centerX = (width - 1) * 0.5f, halfX = width * 0.5f * margin;
+        float centerY = (top + bottom) * 0.5f, halfY = (top - bottom) * 0.5f * margin;
+        int mask = 0;
+        for(int j = 0; j <= FACE_GRID; j++){
+            float inY = centerY + halfY * (2.0f * j / FACE_GRID - 1.0f);
+            for(int i = 0; i <= FACE_GRID; i++){
+                float column = centerX + halfX * (2.0f * i / FACE_GRID - 1.0f);
+                float x = originX + column * stepX + inY * upX;
+                float y = originY + column * stepY + inY * upY;
+                float z = originZ + column * stepZ + inY * upZ;
+                float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+                int f;
+                if (az > ax && az > ay) {
+                    f = z >= 0.0f ? Cubemap.POSZ : Cubemap.NEGZ;
+                } else if (ay > ax) {
+                    f = y >= 0.0f ? Cubemap.POSY : Cubemap.NEGY;
+                } else {
+                    f = x >= 0.0f ? Cubemap.POSX : Cubemap.NEGX;
+                }
+                mask |= 1 << f;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Rasterize a row of the image.
+     * Not thread safe, use one rasterizer per thread.
+     * @param y Row, zero at the top of the image.
+     * @param face Output index of cubemap face of each pixel.
+     * @param u Output coordinate U of each pixel.
+     * @param v Output coordinate V of each pixel. Zero at the top of the face.
+     * @param axis Output major axis of each pixel, see {@link SampleKernel#project}.
+     */
+    public void rasterizeRow(int y, int face[], float u[], float v[], float axis[]){
+        rasterizeRow(y, 0, width, face, u, v, axis);
+    }
+
+    /**
+     * Rasterize a range of columns of a row of the image.
+     * The output of column x is written at index x - startX.
+     * Not thread safe, use one rasterizer per thread.
+     * @param y Row, zero at the top of the image.
+     * @param startX Start column.
+     * @param endX End column. Not inclusive.
+     * @param face Output index of cubemap face of each pixel.
+     * @param u Output coordinate U of each pixel.
+     * @param v Output coordinate V of each pixel. Zero at the top of the face.
+     * @param axis Output major axis of each pixel, see {@link SampleKernel#project}.
+     */
+    public void rasterizeRow(int y, int startX, int endX, int face[], float u[], float v[], float axis[]){
+        float inY = rays.getRowY(y);
+        rowX = orientation.m01 * inY;
+        rowY = orientation.m11 * inY;
+        rowZ = orientation.m21 * inY;
+        float x0 = originX + upX * inY;
+        float y0 = originY + upY * inY;
+        float z0 = originZ + upZ * inY;
+        // First pixel after each plane crossed by the row
+        int count = 0;
+        count = addBreak(x0, stepX, startX, endX, count);
+        count = addBreak(y0, stepY, startX, endX, count);
+        count = addBreak(z0, stepZ, startX, endX, count);
+        count = addBreak(x0 - y0, stepX - stepY, startX, endX, count);
+        count = addBreak(x0 + y0, stepX + stepY, startX, endX, count);
+        count = addBreak(x0 - z0, stepX - stepZ, startX, endX, count);
+        count = addBreak(x0 + z0, stepX + stepZ, startX, endX, count);
+        count = addBreak(y0 - z0, stepY - stepZ, startX, endX, count);
+        count = addBreak(y0 + z0, stepY + stepZ, startX, endX, count);
+        // Insertion sort, there are at most 9 breaks
+        for(int i = 1; i < count; i++){
+            int value = breaks[i];
+            int j = i - 1;
+            while(j >= 0 && breaks[j] > value){
+                breaks[j + 1] = breaks[j];
+                j--;
+            }
+            breaks[j + 1] = value;
+        }
+        int start = startX;
+        for(int i = 0; i <= count; i++){
+            int end = i < count ? breaks[i] : endX;
+            if(end > start){
+                rasterizeSpan(start, end, startX, face, u, v, axis);
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Add the first pixel after the point where a linear function of the row changes sign.
+     * @param value Value at the first pixel.
+     * @param step Step per pixel.
+     * @param startX Start column.
+     * @param endX End column.
+     * @param count Number of breaks.
+     * @return New number of breaks.
+     */
+    private int addBreak(float value, float step, int startX, int endX, int count){
+        if(step != 0.0f){
+            float t = -value / step;
+            if(t > startX && t < endX){
+                breaks[count++] = (int) Math.ceil(t);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Select the face of the ray of a pixel of the row, like {@link SampleKernel#project}.
+     * @param i Column
+     * @return Index of cubemap face.
+     */
+    private int faceOf(int i){
+        float inX = rays.getColumnX(i);
+        float x = orientation.m00 * inX + rowX + distX;
+        float y = orientation.m10 * inX + rowY + distY;
+        float z = orientation.m20 * inX + rowZ + distZ;
+        float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+        if (az > ax && az > ay) {
+            return z >= 0.0f ? Cubemap.POSZ : Cubemap.NEGZ;
+        } else if (ay > ax) {
+            return y >= 0.0f ? Cubemap.POSY : Cubemap.NEGY;
+        } else {
+            return x >= 0.0f ? Cubemap.POSX : Cubemap.NEGX;
+        }
+    }
+
+    /**
+     * Rasterize a span of pixels inside the region of one face.
+     * The face is selected at the middle of the span. The breaks of the span are rounded,
+     * so a pixel at an end of the span can be in the region of the next face: it is rasterized on its own.
+     */
+    private void rasterizeSpan(int start, int end, int offset, int face[], float u[], float v[], float axis[]){
+        int f = faceOf((start + end - 1) >>> 1);
+        while (faceOf(start) != f) {
+            rasterizeSpan(start, start + 1, offset, face, u, v, axis);
+            start++;
+        }
+        while (faceOf(end - 1) != f) {
+            rasterizeSpan(end - 1, end, offset, face, u, v, axis);
+            end--;
+        }
+        Matrix33 o = orientation;
+        // Coordinates of the face as functions of the column: s = sA * columnX + sB + sC, same for t and m
+        float sA, sB, sC, tA, tB, tC, mA, mB, mC;
+        switch (f) {
+            case Cubemap.POSZ:
+                sA = o.m00; sB = rowX; sC = distX;
+                tA = -o.m10; tB = -rowY; tC = -distY;
+                mA = o.m20; mB = rowZ; mC = distZ;
+                break;
+            case Cubemap.NEGZ:
+                sA = -o.m00; sB = -rowX; sC = -distX;
+                tA = -o.m10; tB = -rowY; tC = -distY;
+                mA = -o.m20; mB = -rowZ; mC = -distZ;
+                break;
+            case Cubemap.POSY:
+                sA = o.m00; sB = rowX; sC = distX;
+                tA = o.m20; tB = rowZ; tC = distZ;
+                mA = o.m10; mB = rowY; mC = distY;
+                break;
+            case Cubemap.NEGY:
+                sA = o.m00; sB = rowX; sC = distX;
+                tA = -o.m20; tB = -rowZ; tC = -distZ;
+                mA = -o.m10; mB = -rowY; mC = -distY;
+                break;
+            case Cubemap.POSX:
+                sA = -o.m20; sB = -rowZ; sC = -distZ;
+                tA = -o.m10; tB = -rowY; tC = -distY;
+                mA = o.m00; mB = rowX; mC = distX;
+                break;
+            default:
+                sA = o.m20; sB = rowZ; sC = distZ;
+                tA = -o.m10; tB = -rowY; tC = -distY;
+                mA = -o.m00; mB = -rowX; mC = -distX;
+                break;
+        }
+        // Negating the terms negates the sums exactly, so this is the arithmetic of the projection of each ray
+        for (int i = start; i < end; i++) {
+            float inX = rays.getColumnX(i);
+            float m = mA * inX + mB + mC;
+            float scale = 0.5f / m;
+            int index = i - offset;
+            face[index] = f;
+            u[index] = (sA * inX + sB + sC) * scale + 0.5f;
+            v[index] = (tA * inX + tB + tC) * scale + 0.5f;
+            axis[index] = m;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package viewer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Ring of frame buffers shared by the render thread and the presenting thread.
+ * The render thread acquires a free buffer, draws the frame and queues it. The presenting thread
+ * takes the oldest queued frame, displays it and draws it on screen. A displayed buffer is not
+ * reused until the next frame is displayed, so the component never paints a half drawn frame.
+ * With latest-wins pacing a queued frame that was not taken yet is dropped when the render thread
+ * needs a buffer, so the render thread never waits. With queue pacing every frame is presented and
+ * the render thread waits for a free buffer.
+ * @author edu
+ */
+final class FrameRing {
+
+    /**
+     * Maximum number of buffers.
+     */
+    public static final int MAX_BUFFERS = 3;
+
+    private static final int FREE = 0;
+    private static final int RENDERING = 1;
+    private static final int QUEUED = 2;
+    private static final int PRESENTING = 3;
+    private static final int DISPLAYED = 4;
+
+    private final BufferedImage images[] = new BufferedImage[MAX_BUFFERS];
+    private final int state[] = new int[MAX_BUFFERS];
+    // Order of queued frames
+    private final long sequence[] = new long[MAX_BUFFERS];
+    private long nextSequence;
+    private int count;
+    private boolean latestWins;
+    private boolean closed;
+    // Statistics since the last call to takeStats
+    private long stallTime, presentTime;
+    private int dropped;
+
+    /**
+     * Creates a ring of frame buffers. The buffers are allocated on demand.
+     * @param count Number of buffers: 2 or 3.
+     * @param latestWins true to drop queued frames when the render thread needs a buffer, false to present every frame.
+     */
+    public FrameRing(int count, boolean latestWins){
+        setCount(count);
+        this.latestWins = latestWins;
+    }
+
+    /**
+     * Set number of buffers used for new frames.
+     * @param count Number of buffers: 2 or 3.
+     */
+    public synchronized void setCount(int count){
+        if(count < 2 || count > MAX_BUFFERS){
+            throw new IllegalArgumentException("Invalid number of frame buffers");
+        }
+        this.count = count;
+        notifyAll();
+    }
+
+    /**
+     * Set frame pacing.
+     * @param latestWins true to drop queued frames when the render thread needs a buffer, false to present every frame.
+     */
+    public synchronized void setLatestWins(boolean latestWins){
+        this.latestWins = latestWins;
+        notifyAll();
+    }
+
+    /**
+     * Acquire a buffer for drawing a frame. Waits until a buffer is available.
+     * @param width Width of frame.
+     * @param height Height of frame.
+     * @return Index of buffer, or -1 if the ring is closed.
+     */
+    public synchronized int acquire(int width, int height){
+        long start = System.nanoTime();
+        int index = -1;
+        while(!closed && index < 0){
+            index = find(FREE);
+            if(index < 0 && latestWins){
+                index = find(QUEUED);
+                if(index >= 0){
+                    dropped++;
+                }
+            }
+            if(index < 0){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+        stallTime += System.nanoTime() - start;
+        if(index < 0){
+            return -1;
+        }
+        BufferedImage image = images[index];
+        if(image == null || image.getWidth() != width || image.getHeight() != height){
+            images[index] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        state[index] = RENDERING;
+        return index;
+    }
+
+    /**
+     * Get image of a buffer.
+     * @param index Index of buffer.
+     * @return Image.
+     */
+    public synchronized BufferedImage getImage(int index){
+        return images[index];
+    }
+
+    /**
+     * Queue a drawn frame for presentation.
+     * @param index Index of buffer.
+     */
+    public synchronized void queue(int index){
+        state[index] = QUEUED;
+        sequence[index] = nextSequence++;
+        notifyAll();
+    }
+
+    /**
+     * Release a buffer without presenting it, when drawing the frame was cancelled.
+     * @param index Index of buffer.
+     */
+    public synchronized void release(int index){
+        state[index] = FREE;
+        notifyAll();
+    }
+
+    /**
+     * Take the oldest queued frame for presentation. Waits until a frame is queued.
+     * @return Index of buffer, or -1 if the ring is closed.
+     */
+    public synchronized int take(){
+        while(!closed){
+            int index = -1;
+            for(int i = 0; i < MAX_BUFFERS; i++){
+                if(state[i] == QUEUED && (index < 0 || sequence[i] < sequence[index])){
+                    index = i;
+                }
+            }
+            if(index >= 0){
+                state[index] = PRESENTING;
+                return index;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Mark a frame as displayed. The previous displayed frame is released.
+     * @param index Index of buffer.
+     */
+    public synchronized void display(int index){
+        for(int i = 0; i < MAX_BUFFERS; i++){
+            if(state[i] == DISPLAYED){
+                state[i] = FREE;
+            }
+        }
+        state[index] = DISPLAYED;
+        notifyAll();
+    }
+
+    /**
+     * Add the time spent presenting a frame.
+     * @param time Time in nanoseconds.
+     */
+    public synchronized void presented(long time){
+        presentTime += time;
+    }
+
+    /**
+     * Get statistics since the last call and reset them.
+     * @param stats Output: time the render thread waited for buffers and time spent presenting, in nanoseconds, and number of dropped frames.
+     */
+    public synchronized void takeStats(long stats[]){
+        stats[0] = stallTime;
+        stats[1] = presentTime;
+        stats[2] = dropped;
+        stallTime = 0;
+        presentTime = 0;
+        dropped = 0;
+    }
+
+    /**
+     * Close the ring. Waiting threads return -1.
+     */
+    public synchronized void close(){
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Find a buffer in a state, among the buffers in use.
+     * @param value State.
+     * @return Index of buffer, or -1 if not found.
+     */
+    private int find(int value){
+        for(int i = 0; i < count; i++){
+            if(state[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,282 @@
+package viewer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import math.Matrix33;
+
+/**
+ * Renders images of a cubemap, for exports and batch jobs.
+ * Independent of the interactive renderer and of Swing: the images are drawn in bands of rows
+ * on an executor, see {@link ParallelRows}, the common ForkJoinPool by default.
+ * @author edu
+ */
+public final class ImageRenderer {
+
+    private ImageRenderer(){
+    }
+
+    /**
+     * Render an image from given parameters.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image.
+     * @param orientation Orientation matrix.
+     * @param fov Field of view.
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param lerp If linear interpolation will be used.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @return rendered image 
+     */
+    public static final BufferedImage render(Cubemap cubemap, Matrix33 orientation, float fov, boolean showReference, int refColor, boolean lerp, int width, int height){
+        return render(cubemap, orientation, fov, showReference, refColor, lerp ? Cubemap.FILTER_BILINEAR : Cubemap.FILTER_NEAREST, width, height);
+    }
+    
+    /**
+     * Render an image from given parameters.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image.
+     * @param orientation Orientation matrix.
+     * @param fov Field of view.
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @return rendered image 
+     */
+    public static final BufferedImage render(Cubemap cubemap, Matrix33 orientation, float fov, boolean showReference, int refColor, int filter, int width, int height){
+        return render(cubemap, orientation, fov, showReference, refColor, filter, width, height, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Render an image from given parameters, drawing bands of rows in parallel on the given executor.
+     * The calling thread draws bands too.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image.
+     * @param orientation Orientation matrix.
+     * @param fov Field of view.
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param executor Executor of the bands of rows.
+     * @return rendered image 
+     */
+    public static final BufferedImage render(final Cubemap cubemap, final Matrix33 orientation, float fov, final boolean showReference, final int refColor, final int filter, final int width, int height, Executor executor){
+        if(executor == null){
+            throw new NullPointerException();
+        }
+        if(cubemap == null){
+            throw new NullPointerException();
+        }
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid window size");
+        }
+        if(orientation == null){
+            throw new NullPointerException();
+        }
+        if(fov <= 2.0f || fov >= 175.0f){
+            throw new IllegalArgumentException("Invalid fov");
+        }
+        float windowLeft, windowRight, xRange;
+        float windowBottom, windowTop, yRange;
+        float projDistance = 5.0f;
+        // Calculate projection
+        float aspectRatio = (float)width / (float)height;
+        windowRight = (float) (projDistance * Math.tan(Math.toRadians(fov) / 2.0));
+        windowLeft = -windowRight;
+        xRange = windowRight * 2.0f;
+        windowTop = windowRight / aspectRatio;
+        windowBottom = -windowTop;
+        yRange = windowTop * 2.0f;
+        // Allocate image
+        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        WritableRaster wr = outputImage.getRaster();
+        DataBuffer db = wr.getDataBuffer();
+        DataBufferInt dbi = (DataBufferInt) db;
+        final int buffer[] = dbi.getData();
+        //Render
+        final CameraRays rays = new CameraRays(windowLeft, windowBottom, xRange, yRange, projDistance, width, height);
+        final float footprint = rays.getFootprint();
+        ParallelRows.draw(executor, height, new ParallelRows.BandsFactory() {
+            @Override
+            public ParallelRows.Bands create() {
+                final FaceRasterizer rasterizer = new FaceRasterizer(orientation, rays);
+                final int face[] = new int[width];
+                final float u[] = new float[width], v[] = new float[width], axis[] = new float[width];
+                return new ParallelRows.Bands() {
+                    @Override
+                    public void draw(int startRow, int endRow) {
+                        for (int y = startRow; y < endRow; ++y) {
+                            rasterizer.rasterizeRow(y, face, u, v, axis);
+                            cubemap.sampleProjected(face, u, v, axis, buffer, y * width, width, filter, footprint, showReference, refColor);
+                        }
+                    }
+                };
+            }
+        });
+        return outputImage;
+    }
+    
+    /**
+     * Renders an unwrapped image.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @return rendered image
+     */
+    public static BufferedImage renderUnWrapped(Cubemap cubemap, boolean showReference, int refColor, int width, int height) {
+        return renderUnWrapped(cubemap, showReference, refColor, width, height, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Renders an unwrapped image, scaling the faces in parallel on the given executor.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param executor Executor of the faces.
+     * @return rendered image
+     */
+    public static BufferedImage renderUnWrapped(Cubemap cubemap, boolean showReference, int refColor, int width, int height, Executor executor) {
+        if(cubemap == null || executor == null){
+            throw new NullPointerException();
+        }
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid window size");
+        }
+        return new UnwrappedLayout(cubemap, showReference, refColor, width, height, executor).getImage();
+    }
+
+    /**
+     * Renders an equirectangular image.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param lerp If linear interpolation will be used.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param offset Horizontal offset in range [0,1]
+     * @return rendered image
+     */
+    public static BufferedImage renderEquirect(Cubemap cubemap, boolean showReference, int refColor, boolean lerp, int width, int height, float offset) {
+        return renderEquirect(cubemap, showReference, refColor, lerp ? Cubemap.FILTER_BILINEAR : Cubemap.FILTER_NEAREST, width, height, offset);
+    }
+    
+    /**
+     * Renders an equirectangular image.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param offset Horizontal offset in range [0,1]
+     * @return rendered image
+     */
+    public static BufferedImage renderEquirect(Cubemap cubemap, boolean showReference, int refColor, int filter, int width, int height, float offset) {
+        return renderEquirect(cubemap, showReference, refColor, filter, width, height, offset, Matrix33.identity());
+    }
+    
+    /**
+     * Renders an equirectangular image with an orientation.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param offset Horizontal offset in range [0,1]
+     * @param orientation Orientation matrix, applied after the offset.
+     * @return rendered image
+     */
+    public static BufferedImage renderEquirect(Cubemap cubemap, boolean showReference, int refColor, int filter, int width, int height, float offset, Matrix33 orientation) {
+        return renderEquirect(cubemap, showReference, refColor, filter, width, height, offset, orientation, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Renders an equirectangular image with an orientation, drawing bands of rows in parallel on the given executor.
+     * The calling thread draws bands too.
+     * The type of the image returned is: BufferedImage.TYPE_INT_RGB.
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image.
+     * @param height Height of rendered image.
+     * @param offset Horizontal offset in range [0,1]
+     * @param orientation Orientation matrix, applied after the offset.
+     * @param executor Executor of the bands of rows.
+     * @return rendered image
+     */
+    public static BufferedImage renderEquirect(Cubemap cubemap, boolean showReference, int refColor, int filter, int width, int height, float offset, Matrix33 orientation, Executor executor) {
+        if(cubemap == null || executor == null){
+            throw new NullPointerException();
+        }
+        if(orientation == null){
+            throw new NullPointerException();
+        }
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid window size");
+        }
+        // Allocate image
+        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        WritableRaster wr = outputImage.getRaster();
+        DataBuffer db = wr.getDataBuffer();
+        DataBufferInt dbi = (DataBufferInt) db;
+        int buffer[] = dbi.getData();
+        drawEquirect(cubemap, showReference, refColor, filter, width, height, offset, orientation, buffer, executor);
+        return outputImage;
+    }
+    
+    /**
+     * Generates an image mapping the cubemap to a rentangular image
+     * @param cubemap Cubemap image
+     * @param showReference If the cubemap reference will be drawn on rendered image.
+     * @param refColor Color of cubemap reference
+     * @param filter Filter mode: Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR or Cubemap.FILTER_TRILINEAR.
+     * @param width Width of rendered image
+     * @param height Height of rendered image
+     * @param offset Horizontal offset in range [0,1]
+     * @param orientation Orientation matrix, applied after the offset.
+     * @param pixelBuffer buffer of pixels
+     * @param executor Executor of the bands of rows.
+     */
+    private static void drawEquirect(final Cubemap cubemap, final boolean showReference, final int refColor, final int filter, final int width, int height, float offset, Matrix33 orientation, final int[] pixelBuffer, Executor executor) {
+        final EquirectRays rays = new EquirectRays(width, height, offset, orientation);
+        ParallelRows.draw(executor, height, new ParallelRows.BandsFactory() {
+            @Override
+            public ParallelRows.Bands create() {
+                final float dirX[] = new float[width], dirY[] = new float[width], dirZ[] = new float[width];
+                return new ParallelRows.Bands() {
+                    @Override
+                    public void draw(int startRow, int endRow) {
+                        for(int i = startRow; i < endRow; ++i) {
+                            rays.getRow(i, 0, 1, width, dirX, dirY, dirZ);
+                            if(showReference){
+                                cubemap.sampleCubemapRef(dirX, dirY, dirZ, pixelBuffer, i * width, width, filter, rays.getFootprint(i), refColor);
+                            }else{
+                                cubemap.sampleCubemap(dirX, dirY, dirZ, pixelBuffer, i * width, width, filter, rays.getFootprint(i));
+                            }
+                        }
+                    }
+                };
+            }
+        });
+    }
+    
+}
@@ -0,0 +1,131 @@
+package viewer;
+
+import math.MathUtils;
+
+/**
+ * Bilinear scaling of packed RGB images between two fixed sizes.
+ * The source coordinates and weights of each column and row are precomputed, so scaling a pixel
+ * is a blend of four pixels. Build it when one of the sizes changes.
+ * @author edu
+ */
+final class ImageScaler {
+
+    private final int srcWidth, srcHeight;
+    private final int dstWidth, dstHeight;
+    // First source column and row of each destination column and row, and 8 bit weight of the next one
+    private final int column[], columnWeight[];
+    private final int row[], rowWeight[];
+
+    /**
+     * Creates a scaler.
+     * @param srcWidth Width of source image.
+     * @param srcHeight Height of source image.
+     * @param dstWidth Width of destination image.
+     * @param dstHeight Height of destination image.
+     */
+    public ImageScaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight){
+        if(srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0){
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        column = new int[dstWidth];
+        columnWeight = new int[dstWidth];
+        map(srcWidth, dstWidth, column, columnWeight);
+        row = new int[dstHeight];
+        rowWeight = new int[dstHeight];
+        map(srcHeight, dstHeight, row, rowWeight);
+    }
+
+    /**
+     * Map destination pixel centers to source coordinates.
+     */
+    private static void map(int srcSize, int dstSize, int index[], int weight[]){
+        float ratio = (float) srcSize / dstSize;
+        for(int i = 0; i < dstSize; i++){
+            float x = MathUtils.clamp((i + 0.5f) * ratio - 0.5f, 0.0f, srcSize - 1);
+            int x0 = Math.min((int) x, srcSize - 2);
+            if(x0 < 0){
+                // Source of one pixel
+                index[i] = 0;
+                weight[i] = 0;
+            }else{
+                index[i] = x0;
+                weight[i] = (int) ((x - x0) * 256.0f);
+            }
+        }
+    }
+
+    /**
+     * Get width of source image.
+     * @return width
+     */
+    public int getSrcWidth(){
+        return srcWidth;
+    }
+
+    /**
+     * Get height of source image.
+     * @return height
+     */
+    public int getSrcHeight(){
+        return srcHeight;
+    }
+
+    /**
+     * Get width of destination image.
+     * @return width
+     */
+    public int getDstWidth(){
+        return dstWidth;
+    }
+
+    /**
+     * Get height of destination image.
+     * @return height
+     */
+    public int getDstHeight(){
+        return dstHeight;
+    }
+
+    /**
+     * Scale a range of rows of the destination image.
+     * @param src Source pixels.
+     * @param dst Destination pixels.
+     * @param startRow Start row of destination.
+     * @param endRow End row of destination. Not inclusive.
+     */
+    public void scale(int src[], int dst[], int startRow, int endRow){
+        int nextColumn = srcWidth > 1 ? 1 : 0;
+        int nextRow = srcHeight > 1 ? srcWidth : 0;
+        for(int y = startRow; y < endRow; y++){
+            int top = row[y] * srcWidth;
+            int beta = rowWeight[y];
+            int out = y * dstWidth;
+            for(int x = 0; x < dstWidth; x++){
+                int i00 = top + column[x];
+                int alpha = columnWeight[x];
+                int c0 = lerp(src[i00], src[i00 + nextColumn], alpha);
+                int c1 = lerp(src[i00 + nextRow], src[i00 + nextRow + nextColumn], alpha);
+                dst[out + x] = lerp(c0, c1, beta);
+            }
+        }
+    }
+
+    /**
+     * Linear interpolation of packed RGB colors, processing red and blue together.
+     * @param c0 First color
+     * @param c1 Second color
+     * @param weight Weight of second color in range [0, 255]
+     * @return Interpolated color
+     */
+    private static int lerp(int c0, int c1, int weight){
+        int invWeight = 256 - weight;
+        int rb = (((c0 & 0x00FF00FF) * invWeight + (c1 & 0x00FF00FF) * weight) >>> 8) & 0x00FF00FF;
+        int g = (((c0 & 0x0000FF00) * invWeight + (c1 & 0x0000FF00) * weight) >>> 8) & 0x0000FF00;
+        return rb | g;
+    }
+
+}
@@ -0,0 +1,128 @@
+package viewer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Draws the rows of an image in parallel on an executor.
+ * The rows are split in bands taken from a shared counter, so fast threads draw more bands.
+ * The calling thread draws bands too and returns when every band is drawn: it never waits for
+ * a task the executor did not start, so an executor with busy or no threads only makes it slower.
+ * @author edu
+ */
+final class ParallelRows {
+
+    /**
+     * Rows of a band.
+     */
+    public static final int BAND_ROWS = 16;
+
+    /**
+     * Draws bands of rows. Each thread uses its own.
+     */
+    interface Bands {
+
+        /**
+         * Draw a band of rows.
+         * @param startRow Start row.
+         * @param endRow End row. Not inclusive.
+         */
+        void draw(int startRow, int endRow);
+
+    }
+
+    /**
+     * Creates the bands drawer of a thread, with its scratch state.
+     */
+    interface BandsFactory {
+
+        /**
+         * Creates a bands drawer.
+         * @return bands drawer
+         */
+        Bands create();
+
+    }
+
+    private ParallelRows(){
+    }
+
+    /**
+     * Draw the rows of an image.
+     * @param executor Executor of the tasks, besides the calling thread.
+     * @param height Number of rows.
+     * @param factory Creates the bands drawer of each thread.
+     */
+    public static void draw(Executor executor, final int height, final BandsFactory factory){
+        if(executor == null || factory == null){
+            throw new NullPointerException();
+        }
+        final int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(bands);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                drawBands(factory, height, bands, next, done, error);
+            }
+        };
+        // The calling thread is one of the threads
+        for(int i = 1; i < Math.min(threads, bands); i++){
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        drawBands(factory, height, bands, next, done, error);
+        boolean interrupted = false;
+        while(true){
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = error.get();
+        if(t instanceof RuntimeException){
+            throw (RuntimeException) t;
+        }
+        if(t instanceof Error){
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Draw bands until there are no bands left.
+     */
+    private static void drawBands(BandsFactory factory, int height, int bands, AtomicInteger next, CountDownLatch done, AtomicReference<Throwable> error){
+        Bands drawer = null;
+        int band;
+        while((band = next.getAndIncrement()) < bands){
+            try {
+                if(error.get() == null){
+                    if(drawer == null){
+                        drawer = factory.create();
+                    }
+                    int startRow = band * BAND_ROWS;
+                    drawer.draw(startRow, Math.min(startRow + BAND_ROWS, height));
+                }
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package viewer;
+
+/**
+ * Inner loops of batch cubemap sampling.
+ * The scalar implementation is always available. A SIMD implementation based on the
+ * Vector API is compiled from src-vector when the build runs on JDK 16 or newer,
+ * and used when the jdk.incubator.vector module is present at runtime.
+ * All methods process the indices [start, end) of the input arrays.
+ * @author edu
+ */
+interface SampleKernel {
+
+    /**
+     * Get name of kernel.
+     * @return name of kernel.
+     */
+    String getName();
+
+    /**
+     * Project vectors to cubemap faces.
+     * @param dx X components of vectors.
+     * @param dy Y components of vectors.
+     * @param dz Z components of vectors.
+     * @param face Output index of cubemap face.
+     * @param u Output coordinate U in range [0,1].
+     * @param v Output coordinate V in range [0,1]. Zero at the top of the face.
+     * @param axis Output absolute value of the major axis.
+     * @param start First index.
+     * @param end Last index. Not inclusive.
+     */
+    void project(float dx[], float dy[], float dz[], int face[], float u[], float v[], float axis[], int start, int end);
+
+    /**
+     * Sample face levels. No interpolation.
+     * @param faces Pixels of the 6 faces of a level, including the border.
+     * @param size Size of the level.
+     * @param face Index of cubemap face.
+     * @param u Coordinate U.
+     * @param v Coordinate V.
+     * @param out Output colors, written at index off + i.
+     * @param off Offset in out.
+     * @param start First index.
+     * @param end Last index. Not inclusive.
+     */
+    void sampleNearest(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end);
+
+    /**
+     * Sample face levels. Linear interpolation using fixed point arithmetic.
+     * @param faces Pixels of the 6 faces of a level, including the border.
+     * @param size Size of the level.
+     * @param face Index of cubemap face.
+     * @param u Coordinate U.
+     * @param v Coordinate V.
+     * @param out Output colors, written at index off + i.
+     * @param off Offset in out.
+     * @param start First index.
+     * @param end Last index. Not inclusive.
+     */
+    void sampleLinear(int faces[][], int size, int face[], float u[], float v[], int out[], int off, int start, int end);
+
+}
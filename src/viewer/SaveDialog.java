@@ -36,17 +36,19 @@ public class SaveDialog extends JDialog {
     private ColorPicker colorPicker;
     private JCheckBox referenceCheckBox;
     private JCheckBox lerpCheckBox;
+    private JCheckBox mipmapCheckBox;
     private JButton saveButton;
     private JButton cancelButton;
     private float fov;
     private boolean showReference;
     private boolean lerp;
+    private boolean mipmap;
     private int outputWidth, outputHeight;
     private int refColor;
     private int returnStatus =  RET_CANCEL;
     private boolean editFov;
     
-    public SaveDialog(JFrame parent, boolean modal, int outputWidth, int outputHeight, float fov,  boolean lerp, boolean showReference, int refColor, boolean editFov){
+    public SaveDialog(JFrame parent, boolean modal, int outputWidth, int outputHeight, float fov,  boolean lerp, boolean mipmap, boolean showReference, int refColor, boolean editFov){
         super(parent, modal);
         setTitle("Save Options");
         this.outputWidth = outputWidth;
@@ -54,6 +56,7 @@ public class SaveDialog extends JDialog {
         this.refColor = refColor;
         this.fov = fov;
         this.lerp = lerp;
+        this.mipmap = mipmap;
         this.showReference = showReference;
         this.editFov = editFov;
         setResizable(false);
@@ -107,6 +110,16 @@ public class SaveDialog extends JDialog {
         });
         panel.add(lerpCheckBox);
 
+        mipmapCheckBox = new JCheckBox("Use mipmaps", mipmap);
+        mipmapCheckBox.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent e) {
+                SaveDialog.this.mipmap = (e.getStateChange() == ItemEvent.SELECTED);
+            }
+        });
+        panel.add(mipmapCheckBox);
+        panel.add(new JLabel());
+
         saveButton = new JButton("Save");
         saveButton.addActionListener(new ActionListener(){
             @Override
@@ -154,6 +167,10 @@ public class SaveDialog extends JDialog {
         return lerp;
     }
 
+    public boolean isMipmap() {
+        return mipmap;
+    }
+
     public int getOutputWidth() {
         return outputWidth;
     }
@@ -0,0 +1,171 @@
+package viewer;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Unwrapped cross layout of a cubemap, drawn for one window size.
+ * The faces are scaled once, in parallel bands of rows, with {@link Cubemap#scaleFace}, and the labels of the
+ * reference are drawn over them. A frame of the unwrapped view is a copy of the pixels.
+ * Build it again when the cubemap, the window size or the reference change, see {@link #matches}.
+ * When faces of a lazy cubemap are loaded, only those faces are drawn again, see {@link #redrawFaces}.
+ * @author edu
+ */
+final class UnwrappedLayout {
+
+    private static final Color BACKGROUND = Color.DARK_GRAY;
+    private static final Font LABEL_FONT = new Font("Arial", Font.BOLD, 50);
+    // Faces in the layout: index, column and row
+    private static final int FACES[] = new int[] {Cubemap.NEGX, Cubemap.POSZ, Cubemap.POSX, Cubemap.NEGZ, Cubemap.POSY, Cubemap.NEGY};
+    private static final int COLUMNS[] = new int[] {0, 1, 2, 3, 1, 1};
+    private static final int ROWS[] = new int[] {1, 1, 1, 1, 0, 2};
+    private static final String LABELS[] = new String[] {"-X", "+Z", "+X", "-Z", "+Y", "-Y"};
+
+    private final Cubemap cubemap;
+    private final int width, height;
+    private final boolean showReference;
+    private final int refColor;
+    private final BufferedImage image;
+    private final int pixels[];
+
+    /**
+     * Draws the layout.
+     * @param cubemap Cubemap image
+     * @param showReference If the labels of the faces are drawn.
+     * @param refColor Color of labels
+     * @param width Width of image.
+     * @param height Height of image.
+     * @param executor Executor of the bands of rows of the faces.
+     */
+    public UnwrappedLayout(Cubemap cubemap, boolean showReference, int refColor, int width, int height, Executor executor){
+        if(cubemap == null || executor == null){
+            throw new NullPointerException();
+        }
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("Invalid image size");
+        }
+        this.cubemap = cubemap;
+        this.width = width;
+        this.height = height;
+        this.showReference = showReference;
+        this.refColor = refColor;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        draw(executor);
+    }
+
+    /**
+     * Draw the background, the faces and the labels.
+     */
+    private void draw(Executor executor){
+        Arrays.fill(pixels, BACKGROUND.getRGB() & 0x00FFFFFF);
+        drawFaces(Cubemap.ALL_FACES, executor);
+    }
+
+    /**
+     * Draw again faces of a lazy cubemap loaded after the layout was drawn, with their labels.
+     * @param faces Mask of faces, bit (1 << face) for each face.
+     * @param executor Executor of the bands of rows of the faces.
+     */
+    public void redrawFaces(int faces, Executor executor){
+        if(executor == null){
+            throw new NullPointerException();
+        }
+        if((faces & Cubemap.ALL_FACES) != 0){
+            drawFaces(faces & Cubemap.ALL_FACES, executor);
+        }
+    }
+
+    /**
+     * Draw faces and their labels.
+     */
+    private void drawFaces(final int faces, Executor executor){
+        int imageSize;
+        if(width < height) {
+            imageSize = width/4;
+        } else {
+            imageSize = height/3;
+        }
+        imageSize = (int)(imageSize * 0.9f);
+        if(imageSize == 0){
+            return;
+        }
+        final int faceSize = imageSize;
+        final int left = (width - 4*imageSize)/2;
+        final int top = (height - 3*imageSize)/2;
+        // The same taps for every face and band
+        final Cubemap.FaceScale scale = cubemap.faceScale(faceSize);
+        // Bands of rows of the faces
+        ParallelRows.draw(executor, faceSize, new ParallelRows.BandsFactory() {
+            @Override
+            public ParallelRows.Bands create() {
+                return new ParallelRows.Bands() {
+                    @Override
+                    public void draw(int startRow, int endRow) {
+                        for(int i = 0; i < FACES.length; i++){
+                            if((faces & (1 << FACES[i])) == 0){
+                                continue;
+                            }
+                            int offset = (top + ROWS[i] * faceSize) * width + left + COLUMNS[i] * faceSize;
+                            cubemap.scaleFace(FACES[i], scale, startRow, endRow, pixels, offset, width);
+                        }
+                    }
+                };
+            }
+        });
+        if(showReference) {
+            Graphics g = image.createGraphics();
+            g.setFont(LABEL_FONT);
+            g.setColor(new Color(refColor));
+            FontMetrics m = g.getFontMetrics();
+            int txtHeight = m.getHeight();
+            int txtAscent = m.getAscent();
+            for(int i = 0; i < FACES.length; i++){
+                if((faces & (1 << FACES[i])) == 0){
+                    continue;
+                }
+                int tx = left + COLUMNS[i] * imageSize + imageSize / 2 - m.stringWidth(LABELS[i]) / 2;
+                int ty = top + ROWS[i] * imageSize + imageSize / 2 - txtHeight / 2 + txtAscent;
+                g.drawString(LABELS[i], tx, ty);
+            }
+            g.dispose();
+        }
+    }
+
+    /**
+     * Checks if the layout was drawn with the given parameters.
+     * @param cubemap Cubemap image
+     * @param showReference If the labels of the faces are drawn.
+     * @param refColor Color of labels
+     * @param width Width of image.
+     * @param height Height of image.
+     * @return true if the layout can be reused.
+     */
+    public boolean matches(Cubemap cubemap, boolean showReference, int refColor, int width, int height){
+        return this.cubemap == cubemap && this.width == width && this.height == height
+                && this.showReference == showReference && (!showReference || this.refColor == refColor);
+    }
+
+    /**
+     * Get image of the layout, of type BufferedImage.TYPE_INT_RGB.
+     * @return image
+     */
+    public BufferedImage getImage(){
+        return image;
+    }
+
+    /**
+     * Copy the layout to a color buffer of the same size.
+     * @param dst Destination pixels.
+     */
+    public void copyTo(int dst[]){
+        System.arraycopy(pixels, 0, dst, 0, pixels.length);
+    }
+
+}
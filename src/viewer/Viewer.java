@@ -1,6 +1,7 @@
 package viewer;
 
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -11,6 +12,8 @@ import java.awt.image.BufferedImage;
 import javax.swing.JFrame;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
@@ -23,6 +26,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import math.Matrix33;
@@ -33,6 +37,11 @@ import math.Matrix33;
  */
 public class Viewer extends JFrame {
 
+    // Faces of the preview of a progressive open are this times smaller
+    private static final int PREVIEW_SUBSAMPLING = 8;
+    // Color of the faces of a lazy cubemap not loaded yet
+    private static final int PLACEHOLDER_COLOR = 0x404040;
+
     private CubemapViewer cubemapViewer;
     private JFileChooser openFileChooser;
     private SaveImageFileChooser saveFileChooser;
@@ -45,13 +54,20 @@ public class Viewer extends JFrame {
     private JCheckBoxMenuItem showReference;
     private JMenuItem referenceColor;
     private JCheckBoxMenuItem showInfo;
+    private JCheckBoxMenuItem mipmap;
     private JMenuItem viewPerspective;
     private JMenuItem viewEquirect;
     private JMenuItem viewUnwrapped;
     private JMenuItem resetOrientation;
     private JCheckBoxMenuItem invertMouse;
+    private JCheckBoxMenuItem progressiveOpen;
+    private JCheckBoxMenuItem lazyFaces;
     private JMenu helpMenu;
     private JMenuItem about;
+    // Incremented on each open, a full resolution cubemap of a previous open is discarded
+    private int loadGeneration;
+    // Thread loading the last cubemap opened, interrupted when another one is opened
+    private Thread loader;
     
     public Viewer() {
         setTitle("Cubemap Viewer");
@@ -170,6 +186,17 @@ public class Viewer extends JFrame {
             }
         });
         optionsMenu.add(showInfo);
+        mipmap = new JCheckBoxMenuItem("Mipmaps");
+        mipmap.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_M, 0));
+        mipmap.addActionListener(new ActionListener(){
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                CubemapRenderer cubemapRenderer = cubemapViewer.getCubemapRenderer();
+                boolean mipmap = cubemapRenderer.isMipmap();
+                cubemapRenderer.setMipmap(!mipmap);
+            }
+        });
+        optionsMenu.add(mipmap);
         optionsMenu.addSeparator();
         invertMouse = new JCheckBoxMenuItem("Invert mouse");
         invertMouse.addActionListener(new ActionListener(){
@@ -189,6 +216,12 @@ public class Viewer extends JFrame {
             }
         });
         optionsMenu.add(resetOrientation);
+        optionsMenu.addSeparator();
+        progressiveOpen = new JCheckBoxMenuItem("Progressive open");
+        progressiveOpen.setSelected(true);
+        optionsMenu.add(progressiveOpen);
+        lazyFaces = new JCheckBoxMenuItem("Load visible faces first");
+        optionsMenu.add(lazyFaces);
         menuBar.add(optionsMenu);
 
         helpMenu = new JMenu("Help");
@@ -210,6 +243,7 @@ public class Viewer extends JFrame {
         referenceColor.setEnabled(false);
         showReference.setEnabled(false);
         showInfo.setEnabled(false);
+        mipmap.setEnabled(false);
         viewPerspective.setEnabled(false);
         viewEquirect.setEnabled(false);
         viewUnwrapped.setEnabled(false);
@@ -219,14 +253,105 @@ public class Viewer extends JFrame {
         setLocationRelativeTo(null);
     }   
 
+    /**
+     * Open a cubemap. The images are decoded in the background, the loading of the previous
+     * cubemap opened is interrupted. With progressive open, a subsampled preview is shown first and
+     * the full resolution cubemap replaces it when it is loaded.
+     * Loading the visible faces first opens a lazy cubemap instead, see {@link Cubemap#loadCubemapLazy}.
+     */
     private void loadCubemap(File cubemapDir){
+        final long openStart = System.nanoTime();
+        final int generation = ++loadGeneration;
+        final String path = cubemapDir.getAbsolutePath();
+        if(loader != null){
+            loader.interrupt();
+            loader = null;
+        }
+        if(lazyFaces.isSelected()){
+            loadCubemapLazy(path, generation, openStart);
+            return;
+        }
+        final boolean progressive = progressiveOpen.isSelected();
+        loader = new Thread("Cubemap loader"){
+            @Override
+            public void run() {
+                try {
+                    if(progressive){
+                        final Cubemap preview = Cubemap.loadCubemap(path, Cubemap.LAYOUT_LINEAR, PREVIEW_SUBSAMPLING);
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(generation == loadGeneration){
+                                    showCubemap(preview, true, openStart);
+                                }
+                            }
+                        });
+                    }
+                    final Cubemap full = Cubemap.loadCubemap(path);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(generation == loadGeneration){
+                                showCubemap(full, false, progressive ? 0L : openStart);
+                            }
+                        }
+                    });
+                } catch (InterruptedIOException ex) {
+                    // Superseded by another cubemap
+                } catch (final IOException ex) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(generation == loadGeneration){
+                                JOptionPane.showMessageDialog(Viewer.this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                            }
+                        }
+                    });
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Open a lazy cubemap. The errors of the faces are shown while it is the last cubemap opened.
+     */
+    private void loadCubemapLazy(String path, final int generation, long openStart){
         Cubemap cubemap = null;
         try {
-            cubemap = Cubemap.loadCubemap(cubemapDir.getAbsolutePath());
+            cubemap = Cubemap.loadCubemapLazy(path, Cubemap.LAYOUT_LINEAR, PLACEHOLDER_COLOR);
         } catch (IOException ex) {
             JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
+        cubemap.addFaceListener(new Cubemap.FaceListener() {
+            @Override
+            public void faceLoaded(Cubemap cubemap, int face) {
+            }
+
+            @Override
+            public void faceFailed(Cubemap cubemap, int face, final IOException error) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation == loadGeneration){
+                            JOptionPane.showMessageDialog(Viewer.this, error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+                });
+            }
+        });
+        showCubemap(cubemap, false, openStart);
+    }
+
+    /**
+     * Show a cubemap, enabling the options on the first one.
+     * @param cubemap Cubemap image
+     * @param preview If it is the preview of a progressive open.
+     * @param openTime Time the cubemap started opening, or zero not to track the time to its first frame.
+     */
+    private void showCubemap(Cubemap cubemap, boolean preview, long openTime){
         Cubemap previousCubemap = cubemapViewer.getCubemap();
         if (previousCubemap == null) {
             CubemapRenderer cubemapRenderer = cubemapViewer.getCubemapRenderer();
@@ -234,6 +359,7 @@ public class Viewer extends JFrame {
             referenceColor.setEnabled(true);
             showReference.setEnabled(true);
             showInfo.setEnabled(true);
+            mipmap.setEnabled(true);
             viewPerspective.setEnabled(true);
             viewEquirect.setEnabled(true);
             viewUnwrapped.setEnabled(true);
@@ -245,26 +371,29 @@ public class Viewer extends JFrame {
             resetOrientation.setEnabled(true);
             showReference.setSelected(cubemapRenderer.isShowReference());
             showInfo.setSelected(cubemapRenderer.isShowInfo());
+            mipmap.setSelected(cubemapRenderer.isMipmap());
             invertMouse.setSelected(cubemapViewer.isInvertMouse());
         }
-        setTitle("Cubemap Viewer - " + cubemap.getName() + " (" + cubemap.getSize() + "x" + cubemap.getSize() + ")");
-        cubemapViewer.setCubemap(cubemap);
+        setTitle("Cubemap Viewer - " + cubemap.getName() + (preview ? " (preview)" : " (" + cubemap.getSize() + "x" + cubemap.getSize() + ")"));
+        cubemapViewer.setCubemap(cubemap, openTime);
     }
 
-    private void saveImage(File file) {
+    private void saveImage(final File file) {
         CubemapRenderer cubemapRenderer = cubemapViewer.getCubemapRenderer();
-        int renderType = cubemapRenderer.getRenderType();
-        Cubemap cubemap = cubemapRenderer.getCubemap();
+        final int renderType = cubemapRenderer.getRenderType();
+        final Cubemap cubemap = cubemapRenderer.getCubemap();
         int width = cubemapRenderer.getWidth();
         int height = cubemapRenderer.getHeight();
         boolean reference = cubemapRenderer.isShowReference();
         boolean lerp = cubemapRenderer.isLerp();
-        Matrix33 orientation = cubemapRenderer.getOrientation();
-        float offset = cubemapRenderer.getEquirectOffset();
-        float fov = cubemapRenderer.getFov();
+        boolean mipmap = cubemapRenderer.isMipmap();
+        final Matrix33 orientation = cubemapRenderer.getOrientation();
+        final float offset = cubemapRenderer.getEquirectOffset();
+        final Matrix33 equirectOrientation = cubemapRenderer.getEquirectOrientation();
+        final float fov = cubemapRenderer.getFov();
         int refColor = cubemapRenderer.getRefColor();
         boolean editFov = renderType == CubemapRenderer.RT_PERSPECTIVE;
-        SaveDialog saveDialog = new SaveDialog(Viewer.this, true, width, height, fov, lerp, reference, refColor, editFov);
+        SaveDialog saveDialog = new SaveDialog(Viewer.this, true, width, height, fov, lerp, mipmap, reference, refColor, editFov);
         saveDialog.setVisible(true);
         if (saveDialog.getReturnStatus() == SaveDialog.RET_CANCEL) {
             return;
@@ -272,18 +401,61 @@ public class Viewer extends JFrame {
         width = saveDialog.getOutputWidth();
         height = saveDialog.getOutputHeight();
         reference = saveDialog.isShowReference();
-        lerp = saveDialog.isLerp();
         refColor = saveDialog.getRefColor();
+        lerp = saveDialog.isLerp();
+        mipmap = saveDialog.isMipmap();
+        final int filter = lerp ? (mipmap ? Cubemap.FILTER_TRILINEAR : Cubemap.FILTER_BILINEAR) : Cubemap.FILTER_NEAREST;
+        final int outputWidth = width;
+        final int outputHeight = height;
+        final boolean outputReference = reference;
+        final int outputRefColor = refColor;
+        if (cubemap.getLoadedFaces() == Cubemap.ALL_FACES) {
+            saveImage(file, cubemap, renderType, orientation, fov, equirectOrientation, offset, outputReference, outputRefColor, filter, outputWidth, outputHeight);
+            return;
+        }
+        // The screenshot has every face, not the placeholders of a lazy cubemap.
+        // The faces are loaded in the background, then the screenshot is saved.
+        saveImage.setEnabled(false);
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                cubemap.loadFaces();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                saveImage.setEnabled(true);
+                try {
+                    get();
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(Viewer.this, ex.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                saveImage(file, cubemap, renderType, orientation, fov, equirectOrientation, offset, outputReference, outputRefColor, filter, outputWidth, outputHeight);
+            }
+        }.execute();
+    }
+
+    /**
+     * Render and save a screenshot of a loaded cubemap.
+     */
+    private void saveImage(File file, Cubemap cubemap, int renderType, Matrix33 orientation, float fov, Matrix33 equirectOrientation, float offset,
+            boolean reference, int refColor, int filter, int width, int height) {
         BufferedImage outputImage = null;
         switch (renderType) {
             case CubemapRenderer.RT_PERSPECTIVE:
-                outputImage = CubemapRenderer.render(cubemap, orientation, fov, reference, refColor, lerp, width, height);
+                outputImage = ImageRenderer.render(cubemap, orientation, fov, reference, refColor, filter, width, height);
                 break;
             case CubemapRenderer.RT_UNWRAPPED:
-                outputImage = CubemapRenderer.renderUnWrapped(cubemap, reference, refColor, width, height);
+                outputImage = ImageRenderer.renderUnWrapped(cubemap, reference, refColor, width, height);
                 break;
             case CubemapRenderer.RT_EQUIRECT:
-                outputImage = CubemapRenderer.renderEquirect(cubemap, reference, refColor, lerp, width, height, offset);
+                outputImage = ImageRenderer.renderEquirect(cubemap, reference, refColor, filter, width, height, offset, equirectOrientation);
                 break;
         }
         String format = "jpg";
@@ -0,0 +1,78 @@
+package viewer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import math.Matrix33;
+import org.junit.Test;
+
+/**
+ * The rasterizer gives the same face, U, V and major axis as the projection of each ray of the camera.
+ * @author edu
+ */
+public class FaceRasterizerTest {
+
+    private static final int CAMERAS = 40;
+
+    /**
+     * Compare the rasterizer with the projection of the rotated rays, row by row.
+     */
+    private static void assertRasterizerMatchesProjection(Matrix33 o, CameraRays rays, int startX, int endX){
+        int width = endX - startX;
+        FaceRasterizer rasterizer = new FaceRasterizer(o, rays);
+        int face[] = new int[width], expectedFace[] = new int[width];
+        float u[] = new float[width], v[] = new float[width], axis[] = new float[width];
+        float expectedU[] = new float[width], expectedV[] = new float[width], expectedAxis[] = new float[width];
+        float dx[] = new float[width], dy[] = new float[width], dz[] = new float[width];
+        float projDistance = rays.getProjDistance();
+        for(int y = 0; y < rays.getHeight(); y++){
+            rasterizer.rasterizeRow(y, startX, endX, face, u, v, axis);
+            float inY = rays.getRowY(y);
+            for(int x = startX; x < endX; x++){
+                float inX = rays.getColumnX(x);
+                dx[x - startX] = o.m00 * inX + o.m01 * inY + o.m02 * projDistance;
+                dy[x - startX] = o.m10 * inX + o.m11 * inY + o.m12 * projDistance;
+                dz[x - startX] = o.m20 * inX + o.m21 * inY + o.m22 * projDistance;
+            }
+            Cubemap.SCALAR_KERNEL.project(dx, dy, dz, expectedFace, expectedU, expectedV, expectedAxis, 0, width);
+            for(int i = 0; i < width; i++){
+                String pixel = "pixel (" + (startX + i) + ", " + y + ")";
+                assertEquals(pixel, expectedFace[i], face[i]);
+                assertEquals(pixel, expectedU[i], u[i], 0.0f);
+                assertEquals(pixel, expectedV[i], v[i], 0.0f);
+                assertEquals(pixel, expectedAxis[i], axis[i], 0.0f);
+            }
+        }
+    }
+
+    private static CameraRays rays(float fov, float projDistance, int width, int height){
+        float windowRight = (float) (projDistance * Math.tan(Math.toRadians(fov) / 2.0));
+        float windowTop = windowRight * height / width;
+        return new CameraRays(-windowRight, -windowTop, 2.0f * windowRight, 2.0f * windowTop, projDistance, width, height);
+    }
+
+    @Test
+    public void rowsMatchProjection(){
+        Random random = new Random(11);
+        Matrix33 orientations[] = TestCubemaps.orientations(CAMERAS, 12);
+        for(int c = 0; c < CAMERAS; c++){
+            int width = 16 + random.nextInt(300);
+            int height = 8 + random.nextInt(200);
+            float fov = 20.0f + random.nextFloat() * 140.0f;
+            float projDistance = c % 2 == 0 ? 1.0f : 5.0f;
+            assertRasterizerMatchesProjection(orientations[c], rays(fov, projDistance, width, height), 0, width);
+        }
+    }
+
+    @Test
+    public void tilesMatchProjection(){
+        Matrix33 orientations[] = TestCubemaps.orientations(CAMERAS, 13);
+        CameraRays rays = rays(75.0f, 5.0f, 200, 100);
+        for(int c = 0; c < CAMERAS; c++){
+            for(int startX = 0; startX < rays.getWidth(); startX += 32){
+                assertRasterizerMatchesProjection(orientations[c], rays, startX, Math.min(startX + 32, rays.getWidth()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package viewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import math.Matrix33;
+import math.Vector3D;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A lazy cubemap loads only the faces requested, and once its faces are loaded,
+ * renders the same images as the cubemap loaded at once.
+ * @author edu
+ */
+public class LazyCubemapTest {
+
+    private static final int SIZE = 64;
+    private static final int PLACEHOLDER = 0x404040;
+    private static final int FILTERS[] = {Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR, Cubemap.FILTER_TRILINEAR};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int[] pixels(BufferedImage image){
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private void assertLazyMatchesEager(int layout) throws IOException {
+        File dir = folder.newFolder();
+        TestCubemaps.writeNoise(dir, SIZE, 21);
+        Cubemap lazy = Cubemap.loadCubemapLazy(dir.getPath(), layout, PLACEHOLDER);
+        Cubemap eager = Cubemap.loadCubemap(dir.getPath(), layout);
+        lazy.loadFaces();
+        assertEquals(Cubemap.ALL_FACES, lazy.getLoadedFaces());
+        Matrix33 orientations[] = TestCubemaps.orientations(10, 22);
+        for(int filter: FILTERS){
+            assertArrayEquals("equirect, filter " + filter,
+                    pixels(ImageRenderer.renderEquirect(eager, false, 0, filter, 256, 128, 0.0f, Matrix33.identity())),
+                    pixels(ImageRenderer.renderEquirect(lazy, false, 0, filter, 256, 128, 0.0f, Matrix33.identity())));
+            for(int i = 0; i < orientations.length; i++){
+                assertArrayEquals("perspective " + i + ", filter " + filter,
+                        pixels(ImageRenderer.render(eager, orientations[i], 90.0f, false, 0, filter, 160, 120)),
+                        pixels(ImageRenderer.render(lazy, orientations[i], 90.0f, false, 0, filter, 160, 120)));
+            }
+        }
+        assertArrayEquals("unwrapped", pixels(ImageRenderer.renderUnWrapped(eager, false, 0, 400, 300)),
+                pixels(ImageRenderer.renderUnWrapped(lazy, false, 0, 400, 300)));
+    }
+
+    @Test
+    public void linearLayoutMatchesEager() throws IOException {
+        assertLazyMatchesEager(Cubemap.LAYOUT_LINEAR);
+    }
+
+    @Test
+    public void tiledLayoutMatchesEager() throws IOException {
+        assertLazyMatchesEager(Cubemap.LAYOUT_TILED);
+    }
+
+    @Test
+    public void requestedFaceIsLoadedAlone() throws IOException, InterruptedException {
+        File dir = folder.newFolder();
+        TestCubemaps.writeNoise(dir, SIZE, 23);
+        Cubemap eager = Cubemap.loadCubemap(dir.getPath());
+        Cubemap lazy = Cubemap.loadCubemapLazy(dir.getPath(), Cubemap.LAYOUT_LINEAR, PLACEHOLDER);
+        assertEquals(0, lazy.getLoadedFaces());
+        // The other faces can't be loaded any more, they read the placeholder even when sampling requests them
+        for(int face = 0; face < 6; face++){
+            if(face != Cubemap.POSZ){
+                assertTrue(new File(dir, TestCubemaps.FACE_FILES[face]).delete());
+            }
+        }
+        final CountDownLatch loaded = new CountDownLatch(1);
+        lazy.addFaceListener(new Cubemap.FaceListener() {
+            @Override
+            public void faceLoaded(Cubemap cubemap, int face) {
+                if(face == Cubemap.POSZ){
+                    loaded.countDown();
+                }
+            }
+
+            @Override
+            public void faceFailed(Cubemap cubemap, int face, IOException error) {
+            }
+        });
+        lazy.requestFaces(1 << Cubemap.POSZ);
+        assertTrue("face not loaded", loaded.await(10, TimeUnit.SECONDS));
+        assertEquals(1 << Cubemap.POSZ, lazy.getLoadedFaces());
+        // Center of each face, in face index order
+        Vector3D centers[] = {new Vector3D(1.0f, 0.0f, 0.0f), new Vector3D(-1.0f, 0.0f, 0.0f), new Vector3D(0.0f, 1.0f, 0.0f),
+            new Vector3D(0.0f, -1.0f, 0.0f), new Vector3D(0.0f, 0.0f, 1.0f), new Vector3D(0.0f, 0.0f, -1.0f)};
+        for(int face = 0; face < 6; face++){
+            int expected = face == Cubemap.POSZ ? eager.sampleCubemap(centers[face], false) : PLACEHOLDER;
+            assertEquals("face " + face, expected, lazy.sampleCubemap(centers[face], false));
+        }
+    }
+
+}
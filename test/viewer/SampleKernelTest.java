@@ -0,0 +1,116 @@
+package viewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import math.Vector3D;
+import org.junit.Test;
+
+/**
+ * Equivalence of the sampling paths: single vector and batch samplers, scalar and SIMD kernels, linear and tiled layouts.
+ * @author edu
+ */
+public class SampleKernelTest {
+
+    private static final int SIZE = 64;
+    private static final int COUNT = 4099;
+    private static final int FILTERS[] = {Cubemap.FILTER_NEAREST, Cubemap.FILTER_BILINEAR, Cubemap.FILTER_TRILINEAR};
+    // Footprint of a pixel of a 512 pixels wide view with a 90 degrees field of view
+    private static final float FOOTPRINT = (2.0f / 512) * (2.0f / 512);
+
+    private static int[] sampleBatch(Cubemap cubemap, SampleKernel kernel, float d[][], int filter){
+        int out[] = new int[COUNT];
+        cubemap.sampleBatch(kernel, d[0], d[1], d[2], out, 0, COUNT, filter, FOOTPRINT, false, 0);
+        return out;
+    }
+
+    @Test
+    public void batchMatchesSingleVector(){
+        Cubemap cubemap = TestCubemaps.noise(SIZE, Cubemap.LAYOUT_LINEAR, 1);
+        float d[][] = TestCubemaps.directions(COUNT, 2);
+        Vector3D dir = new Vector3D();
+        for(int f = 0; f < 2; f++){
+            boolean linear = f == 1;
+            int batch[] = sampleBatch(cubemap, Cubemap.SCALAR_KERNEL, d, linear ? Cubemap.FILTER_BILINEAR : Cubemap.FILTER_NEAREST);
+            for(int i = 0; i < COUNT; i++){
+                dir.x = d[0][i];
+                dir.y = d[1][i];
+                dir.z = d[2][i];
+                assertEquals("direction " + i, cubemap.sampleCubemap(dir, linear), batch[i]);
+            }
+        }
+    }
+
+    @Test
+    public void tiledLayoutMatchesLinearLayout(){
+        Cubemap linear = TestCubemaps.noise(SIZE, Cubemap.LAYOUT_LINEAR, 3);
+        Cubemap tiled = TestCubemaps.noise(SIZE, Cubemap.LAYOUT_TILED, 3);
+        float d[][] = TestCubemaps.directions(COUNT, 4);
+        Vector3D dir = new Vector3D();
+        for(int filter: FILTERS){
+            assertArrayEquals("filter " + filter, sampleBatch(linear, Cubemap.SCALAR_KERNEL, d, filter), sampleBatch(tiled, Cubemap.SCALAR_KERNEL, d, filter));
+        }
+        for(int i = 0; i < COUNT; i++){
+            dir.x = d[0][i];
+            dir.y = d[1][i];
+            dir.z = d[2][i];
+            assertEquals("nearest, direction " + i, linear.sampleCubemap(dir, false), tiled.sampleCubemap(dir, false));
+            assertEquals("bilinear, direction " + i, linear.sampleCubemap(dir, true), tiled.sampleCubemap(dir, true));
+        }
+    }
+
+    /**
+     * Compare colors channel by channel.
+     * @param tolerance Maximum difference of each channel.
+     */
+    private static void assertColorsClose(String message, int expected[], int actual[], int tolerance){
+        assertEquals(message, expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++){
+            for(int shift = 0; shift < 24; shift += 8){
+                int difference = Math.abs((expected[i] >> shift & 0xFF) - (actual[i] >> shift & 0xFF));
+                if(difference > tolerance){
+                    assertEquals(message + ", sample " + i, expected[i], actual[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void kernelProjectionMatchesScalarKernel(){
+        float d[][] = TestCubemaps.directions(COUNT, 8);
+        int face[] = new int[COUNT], expectedFace[] = new int[COUNT];
+        float u[] = new float[COUNT], v[] = new float[COUNT], axis[] = new float[COUNT];
+        float expectedU[] = new float[COUNT], expectedV[] = new float[COUNT], expectedAxis[] = new float[COUNT];
+        Cubemap.SCALAR_KERNEL.project(d[0], d[1], d[2], expectedFace, expectedU, expectedV, expectedAxis, 0, COUNT);
+        Cubemap.KERNEL.project(d[0], d[1], d[2], face, u, v, axis, 0, COUNT);
+        assertArrayEquals(expectedFace, face);
+        assertArrayEquals(expectedU, u, 0.0f);
+        assertArrayEquals(expectedV, v, 0.0f);
+        assertArrayEquals(expectedAxis, axis, 0.0f);
+    }
+
+    @Test
+    public void kernelMatchesScalarKernel(){
+        Cubemap cubemap = TestCubemaps.noise(SIZE, Cubemap.LAYOUT_LINEAR, 5);
+        float d[][] = TestCubemaps.directions(COUNT, 6);
+        String name = Cubemap.KERNEL.getName();
+        int scalar[] = sampleBatch(cubemap, Cubemap.SCALAR_KERNEL, d, Cubemap.FILTER_NEAREST);
+        assertArrayEquals(name + ", nearest", scalar, sampleBatch(cubemap, Cubemap.KERNEL, d, Cubemap.FILTER_NEAREST));
+        // The SIMD kernel blends with 8-bit weights
+        scalar = sampleBatch(cubemap, Cubemap.SCALAR_KERNEL, d, Cubemap.FILTER_BILINEAR);
+        assertColorsClose(name + ", bilinear", scalar, sampleBatch(cubemap, Cubemap.KERNEL, d, Cubemap.FILTER_BILINEAR), 2);
+        scalar = sampleBatch(cubemap, Cubemap.SCALAR_KERNEL, d, Cubemap.FILTER_TRILINEAR);
+        assertArrayEquals(name + ", trilinear", scalar, sampleBatch(cubemap, Cubemap.KERNEL, d, Cubemap.FILTER_TRILINEAR));
+    }
+
+    @Test
+    public void kernelMatchesScalarKernelOnZeroDirections(){
+        Cubemap cubemap = TestCubemaps.noise(SIZE, Cubemap.LAYOUT_LINEAR, 7);
+        float d[][] = new float[3][COUNT];
+        for(int filter: FILTERS){
+            assertColorsClose(Cubemap.KERNEL.getName() + ", filter " + filter,
+                    sampleBatch(cubemap, Cubemap.SCALAR_KERNEL, d, filter), sampleBatch(cubemap, Cubemap.KERNEL, d, filter), 2);
+        }
+    }
+
+}
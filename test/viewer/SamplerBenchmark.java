@@ -0,0 +1,282 @@
+package viewer;
+
+import java.awt.image.BufferedImage;
+import math.MathUtils;
+import math.Matrix33;
+import math.Vector3D;
+
+/**
+ * Micro benchmark for the cubemap samplers.
+ * Renders perspective views of a synthetic cubemap and reports the time per sample.
+ * Compares the clamped and bordered samplers, the batch kernels, the perspective backends and the texel layouts.
+ * Usage: SamplerBenchmark [faceSize] [width] [height] [iterations]
+ * It is built with the tests: run it with target/classes and target/test-classes in the class path,
+ * and with --add-modules jdk.incubator.vector to compare the SIMD kernel with the scalar one.
+ * @author edu
+ */
+public class SamplerBenchmark {
+
+    private static final float FOV = 90.0f;
+    private static final float PROJ_DISTANCE = 5.0f;
+
+    /**
+     * Reference sampler with the original layout: one tight array per face, clamping at the face edges
+     * and flipping the vertical axis on every sample.
+     */
+    private static class ClampedSampler {
+
+        private final int data[][];
+        private final int size;
+        private final int size_minus_one;
+
+        public ClampedSampler(Cubemap cubemap){
+            size = cubemap.getSize();
+            size_minus_one = size - 1;
+            data = new int[6][size * size];
+            BufferedImage images[] = cubemap.getImageArray();
+            for(int i = 0; i < 6; i++){
+                images[i].getRaster().getDataElements(0, 0, size, size, data[i]);
+            }
+        }
+
+        private int sample2DNearest(int data[], float u, float v) {
+            int ru = (int) (u * size);
+            int rv = (int) (v * size);
+            ru = MathUtils.clamp(ru, 0, size_minus_one);
+            rv = MathUtils.clamp(rv, 0, size_minus_one);
+            rv = size_minus_one - rv;
+            return data[rv * size + ru];
+        }
+
+        private int sample2DLinear(int data[], float u, float v) {
+            int mu = (int) ((-0.5f + u * size) * 65536.0f);
+            int mv = (int) ((-0.5f + v * size) * 65536.0f);
+            int u0 = MathUtils.clamp(mu >> 16, 0, size_minus_one);
+            int u1 = MathUtils.clamp(u0 + 1, 0, size_minus_one);
+            int alpha = mu & 0xFFFF;
+            int v0 = MathUtils.clamp(mv >> 16, 0, size_minus_one);
+            int v1 = MathUtils.clamp(v0 + 1, 0, size_minus_one);
+            int beta = mv & 0xFFFF;
+            v0 = size_minus_one - v0;
+            v1 = size_minus_one - v1;
+            int s00 = data[v0 * size + u0], s01 = data[v0 * size + u1], s10 = data[v1 * size + u0], s11 = data[v1 * size + u1];
+            long w00 = (long) (65536 - alpha) * (65536 - beta);
+            long w01 = (long) alpha * (65536 - beta);
+            long w10 = (long) (65536 - alpha) * beta;
+            long w11 = (long) alpha * beta;
+            int r = (int) (((s00 >> 16 & 0xFF) * w00 + (s01 >> 16 & 0xFF) * w01
+                    + (s10 >> 16 & 0xFF) * w10 + (s11 >> 16 & 0xFF) * w11) >> 32);
+            int g = (int) (((s00 >> 8 & 0xFF) * w00 + (s01 >> 8 & 0xFF) * w01
+                    + (s10 >> 8 & 0xFF) * w10 + (s11 >> 8 & 0xFF) * w11) >> 32);
+            int b = (int) (((s00 & 0xFF) * w00 + (s01 & 0xFF) * w01
+                    + (s10 & 0xFF) * w10 + (s11 & 0xFF) * w11) >> 32);
+            return (r << 16) | (g << 8) | b;
+        }
+
+        public int sampleCubemap(Vector3D dir, boolean linear) {
+            float xuSign, xvSign, xAbs;
+            float yuSign, yvSign, yAbs;
+            float zuSign, zvSign, zAbs;
+            int xIndex, yIndex, zIndex;
+            if (dir.x >= 0.0f) {
+                xAbs = dir.x; xIndex = Cubemap.POSX; xuSign = -1.0f; xvSign = 1.0f;
+            } else {
+                xAbs = -dir.x; xIndex = Cubemap.NEGX; xuSign = 1.0f; xvSign = 1.0f;
+            }
+            if (dir.y >= 0.0f) {
+                yAbs = dir.y; yIndex = Cubemap.POSY; yuSign = 1.0f; yvSign = -1.0f;
+            } else {
+                yAbs = -dir.y; yIndex = Cubemap.NEGY; yuSign = 1.0f; yvSign = 1.0f;
+            }
+            if (dir.z >= 0.0f) {
+                zAbs = dir.z; zIndex = Cubemap.POSZ; zuSign = 1.0f; zvSign = 1.0f;
+            } else {
+                zAbs = -dir.z; zIndex = Cubemap.NEGZ; zuSign = -1.0f; zvSign = 1.0f;
+            }
+            int maxIndex = xIndex;
+            float u = dir.z, v = dir.y;
+            float uSign = xuSign, vSign = xvSign, maxAxis = xAbs;
+            if(yAbs > maxAxis){
+                maxAxis = yAbs; maxIndex = yIndex; u = dir.x; v = dir.z; uSign = yuSign; vSign = yvSign;
+            }
+            if(zAbs > maxAxis){
+                maxAxis = zAbs; maxIndex = zIndex; u = dir.x; v = dir.y; uSign = zuSign; vSign = zvSign;
+            }
+            float nu = 0.5f * uSign * u / maxAxis + 0.5f;
+            float nv = 0.5f * vSign * v / maxAxis + 0.5f;
+            return linear ? sample2DLinear(data[maxIndex], nu, nv) : sample2DNearest(data[maxIndex], nu, nv);
+        }
+    }
+
+    /**
+     * Camera orientations used by the benchmark: level, yawed, pitched and looking down a cube corner.
+     * @return Orientation matrices
+     */
+    static Matrix33[] orientations(){
+        return new Matrix33[]{
+            Matrix33.identity(),
+            Matrix33.rotateY((float) Math.toRadians(45.0)),
+            Matrix33.rotateX((float) Math.toRadians(60.0)),
+            Matrix33.rotateY((float) Math.toRadians(45.0)).mult(Matrix33.rotateX((float) Math.toRadians(35.0)))
+        };
+    }
+
+    /**
+     * Renders frames of the benchmark.
+     */
+    private interface FrameRenderer {
+
+        /**
+         * Render one frame.
+         * @return checksum of the frame, to keep the work alive
+         */
+        long render(Matrix33 orientation, boolean linear, int width, int height, int buffer[]);
+    }
+
+    /**
+     * Renderer casting a ray per pixel, with the single vector API of the cubemap or the reference sampler.
+     */
+    private static FrameRenderer rayCaster(final Cubemap cubemap, final ClampedSampler reference){
+        return new FrameRenderer(){
+            @Override
+            public long render(Matrix33 orientation, boolean linear, int width, int height, int buffer[]){
+                float windowRight = (float) (PROJ_DISTANCE * Math.tan(Math.toRadians(FOV) / 2.0));
+                float windowTop = windowRight * height / width;
+                Vector3D inDir = new Vector3D(0.0f, 0.0f, PROJ_DISTANCE);
+                Vector3D outDir = new Vector3D();
+                long checksum = 0;
+                for(int y = 0; y < height; y++){
+                    inDir.y = windowTop - 2.0f * windowTop * (y + 0.5f) / height;
+                    for(int x = 0; x < width; x++){
+                        inDir.x = -windowRight + 2.0f * windowRight * (x + 0.5f) / width;
+                        orientation.mult(inDir, outDir);
+                        buffer[y * width + x] = reference != null ? reference.sampleCubemap(outDir, linear) : cubemap.sampleCubemap(outDir, linear);
+                    }
+                    checksum += buffer[y * width];
+                }
+                return checksum;
+            }
+        };
+    }
+
+    /**
+     * Renderer casting a ray per pixel with the batch API, one row per batch.
+     */
+    private static FrameRenderer batchRayCaster(final Cubemap cubemap, final SampleKernel kernel){
+        return new FrameRenderer(){
+            @Override
+            public long render(Matrix33 orientation, boolean linear, int width, int height, int buffer[]){
+                float windowRight = (float) (PROJ_DISTANCE * Math.tan(Math.toRadians(FOV) / 2.0));
+                float windowTop = windowRight * height / width;
+                float dirX[] = new float[width], dirY[] = new float[width], dirZ[] = new float[width];
+                int filter = linear ? Cubemap.FILTER_BILINEAR : Cubemap.FILTER_NEAREST;
+                long checksum = 0;
+                for(int y = 0; y < height; y++){
+                    float inY = windowTop - 2.0f * windowTop * (y + 0.5f) / height;
+                    for(int x = 0; x < width; x++){
+                        float inX = -windowRight + 2.0f * windowRight * (x + 0.5f) / width;
+                        dirX[x] = orientation.m00 * inX + orientation.m01 * inY + orientation.m02 * PROJ_DISTANCE;
+                        dirY[x] = orientation.m10 * inX + orientation.m11 * inY + orientation.m12 * PROJ_DISTANCE;
+                        dirZ[x] = orientation.m20 * inX + orientation.m21 * inY + orientation.m22 * PROJ_DISTANCE;
+                    }
+                    cubemap.sampleBatch(kernel, dirX, dirY, dirZ, buffer, y * width, width, filter, 0.0f, false, 0);
+                    checksum += buffer[y * width];
+                }
+                return checksum;
+            }
+        };
+    }
+
+    /**
+     * Renderer with the scanline face rasterizer.
+     */
+    private static FrameRenderer rasterizer(final Cubemap cubemap){
+        return new FrameRenderer(){
+            @Override
+            public long render(Matrix33 orientation, boolean linear, int width, int height, int buffer[]){
+                float windowRight = (float) (PROJ_DISTANCE * Math.tan(Math.toRadians(FOV) / 2.0));
+                float windowTop = windowRight * height / width;
+                FaceRasterizer rasterizer = new FaceRasterizer(orientation, new CameraRays(-windowRight, -windowTop, 2.0f * windowRight, 2.0f * windowTop, PROJ_DISTANCE, width, height));
+                int face[] = new int[width];
+                float u[] = new float[width], v[] = new float[width], axis[] = new float[width];
+                int filter = linear ? Cubemap.FILTER_BILINEAR : Cubemap.FILTER_NEAREST;
+                long checksum = 0;
+                for(int y = 0; y < height; y++){
+                    rasterizer.rasterizeRow(y, face, u, v, axis);
+                    cubemap.sampleProjected(face, u, v, axis, buffer, y * width, width, filter, 0.0f, false, 0);
+                    checksum += buffer[y * width];
+                }
+                return checksum;
+            }
+        };
+    }
+
+    /**
+     * Time per sample of a renderer, and checksum of its frames.
+     */
+    private static final class Measurement {
+
+        final double nsPerSample;
+        final long checksum;
+
+        Measurement(double nsPerSample, long checksum){
+            this.nsPerSample = nsPerSample;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Measure the time per sample.
+     * @return time per sample and checksum of the frames
+     */
+    private static Measurement measure(FrameRenderer renderer, Matrix33 orientation, boolean linear, int width, int height, int iterations, int buffer[]){
+        long checksum = 0;
+        for(int i = 0; i < iterations; i++){
+            checksum += renderer.render(orientation, linear, width, height, buffer);
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++){
+            checksum += renderer.render(orientation, linear, width, height, buffer);
+        }
+        long time = System.nanoTime() - start;
+        return new Measurement((double) time / ((double) iterations * width * height), checksum);
+    }
+
+    /**
+     * Compare two renderers across the camera orientations, with nearest and bilinear filters.
+     */
+    private static void compare(String title, String nameA, FrameRenderer a, String nameB, FrameRenderer b, int width, int height, int iterations, int buffer[]){
+        Matrix33 orientations[] = orientations();
+        System.out.println();
+        System.out.println(title);
+        System.out.println(String.format("orientation  filter    %21s %21s  speedup  checksums", nameA + " ns/sample", nameB + " ns/sample"));
+        for(int i = 0; i < orientations.length; i++){
+            for(int f = 0; f < 2; f++){
+                boolean linear = f == 1;
+                Measurement measureA = measure(a, orientations[i], linear, width, height, iterations, buffer);
+                Measurement measureB = measure(b, orientations[i], linear, width, height, iterations, buffer);
+                System.out.println(String.format("%-12d %-9s %21.2f %21.2f %8.2fx  %x %x", i, linear ? "bilinear" : "nearest",
+                        measureA.nsPerSample, measureB.nsPerSample, measureA.nsPerSample / measureB.nsPerSample, measureA.checksum, measureB.checksum));
+            }
+        }
+    }
+
+    public static void main(String args[]){
+        int faceSize = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 1920;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 1080;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        Cubemap cubemap = TestCubemaps.noise(faceSize, Cubemap.LAYOUT_LINEAR, 1);
+        int buffer[] = new int[width * height];
+        System.out.println("Face size: " + faceSize + ", viewport: " + width + "x" + height + ", fov: " + FOV);
+        compare("Samplers", "clamped", rayCaster(cubemap, new ClampedSampler(cubemap)), "bordered", rayCaster(cubemap, null), width, height, iterations, buffer);
+        compare("Batch kernels: " + Cubemap.SCALAR_KERNEL.getName() + " vs " + Cubemap.KERNEL.getName(),
+                "scalar", batchRayCaster(cubemap, Cubemap.SCALAR_KERNEL), "kernel", batchRayCaster(cubemap, Cubemap.KERNEL), width, height, iterations, buffer);
+        compare("Perspective backends, " + Cubemap.KERNEL.getName() + " kernel",
+                "ray casting", batchRayCaster(cubemap, Cubemap.KERNEL), "rasterizer", rasterizer(cubemap), width, height, iterations, buffer);
+        Cubemap tiled = TestCubemaps.noise(faceSize, Cubemap.LAYOUT_TILED, 1);
+        compare("Layouts, batch API with scalar kernel",
+                "linear", batchRayCaster(cubemap, Cubemap.SCALAR_KERNEL), "tiled", batchRayCaster(tiled, Cubemap.SCALAR_KERNEL), width, height, iterations, buffer);
+    }
+
+}
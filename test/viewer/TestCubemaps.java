@@ -0,0 +1,131 @@
+package viewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import math.Matrix33;
+
+/**
+ * Cubemaps, directions and cameras for the tests and the benchmark, built from seeded noise so every run sees the same data.
+ * @author edu
+ */
+final class TestCubemaps {
+
+    // File names of the faces, in face index order
+    static final String FACE_FILES[] = {"posx.png", "negx.png", "posy.png", "negy.png", "posz.png", "negz.png"};
+
+    private TestCubemaps(){
+    }
+
+    /**
+     * Creates the faces of a cubemap filled with noise.
+     * @param size Size of faces
+     * @param seed Seed of the noise
+     * @return Faces, in face index order
+     */
+    static BufferedImage[] noiseFaces(int size, long seed){
+        Random random = new Random(seed);
+        BufferedImage faces[] = new BufferedImage[6];
+        int row[] = new int[size];
+        for(int i = 0; i < 6; i++){
+            faces[i] = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            for(int y = 0; y < size; y++){
+                for(int x = 0; x < size; x++){
+                    row[x] = random.nextInt() & 0x00FFFFFF;
+                }
+                faces[i].setRGB(0, y, size, 1, row, 0, size);
+            }
+        }
+        return faces;
+    }
+
+    /**
+     * Creates a cubemap filled with noise.
+     * @param size Size of faces
+     * @param layout Texel layout
+     * @param seed Seed of the noise
+     * @return Cubemap
+     */
+    static Cubemap noise(int size, int layout, long seed){
+        Cubemap cubemap = new Cubemap("noise", size, layout);
+        BufferedImage faces[] = noiseFaces(size, seed);
+        BufferedImage images[] = cubemap.getImageArray();
+        for(int i = 0; i < 6; i++){
+            images[i].getGraphics().drawImage(faces[i], 0, 0, null);
+        }
+        cubemap.update();
+        return cubemap;
+    }
+
+    /**
+     * Writes the faces of a cubemap filled with noise to a cubemap directory.
+     * @param dir Cubemap directory
+     * @param size Size of faces
+     * @param seed Seed of the noise
+     * @throws IOException If a face couldn't be written.
+     */
+    static void writeNoise(File dir, int size, long seed) throws IOException {
+        BufferedImage faces[] = noiseFaces(size, seed);
+        for(int i = 0; i < 6; i++){
+            ImageIO.write(faces[i], "png", new File(dir, FACE_FILES[i]));
+        }
+    }
+
+    /**
+     * Creates random directions, with some of them on the planes between the faces and on the edges of the cube.
+     * @param count Number of directions
+     * @param seed Seed of the directions
+     * @return X, Y and Z components
+     */
+    static float[][] directions(int count, long seed){
+        Random random = new Random(seed);
+        float d[][] = new float[3][count];
+        for(int i = 0; i < count; i++){
+            float x = random.nextFloat() * 2.0f - 1.0f;
+            float y = random.nextFloat() * 2.0f - 1.0f;
+            float z = random.nextFloat() * 2.0f - 1.0f;
+            switch(i % 8){
+                case 0:
+                    y = x;
+                    break;
+                case 1:
+                    z = -y;
+                    break;
+                case 2:
+                    y = z = x;
+                    break;
+                default:
+                    break;
+            }
+            d[0][i] = x;
+            d[1][i] = y;
+            d[2][i] = z;
+        }
+        return d;
+    }
+
+    /**
+     * Creates random camera orientations, the first ones looking along the axes and between them.
+     * @param count Number of orientations
+     * @param seed Seed of the orientations
+     * @return Orientation matrices
+     */
+    static Matrix33[] orientations(int count, long seed){
+        Random random = new Random(seed);
+        Matrix33 orientations[] = new Matrix33[count];
+        for(int i = 0; i < count; i++){
+            if(i < 8){
+                orientations[i] = Matrix33.rotateY((float) (i * Math.PI / 4.0)).mult(Matrix33.rotateX((float) ((i % 3 - 1) * Math.PI / 4.0)));
+            }else{
+                float yaw = (float) (random.nextFloat() * 2.0 * Math.PI);
+                float pitch = (float) ((random.nextFloat() - 0.5f) * Math.PI);
+                float roll = (float) (random.nextFloat() * 2.0 * Math.PI);
+                orientations[i] = Matrix33.rotateY(yaw).mult(Matrix33.rotateX(pitch)).mult(Matrix33.rotateZ(roll));
+            }
+        }
+        return orientations;
+    }
+
+}